@@ -1,8 +1,11 @@
 import api.{BlocksApi, BlocksApiImpl, CollateralApi, CollateralApiImpl, InfoApi, InfoApiImpl, MiningApi, MiningApiImpl, PaymentsApi, PaymentsApiImpl}
 import com.google.inject.AbstractModule
+import evaluation.EvaluationLedger
+import nisp.NISPDatabase
 import play.api.{Configuration, Environment}
 import play.libs.akka.AkkaGuiceSupport
 import tasks.{BlockPolling, StratumServer}
+import utils.{EvaluationLedgerProvider, NISPDatabaseProvider}
 
 class Module(environment: Environment, configuration: Configuration) extends AbstractModule with AkkaGuiceSupport
 {
@@ -14,6 +17,8 @@ class Module(environment: Environment, configuration: Configuration) extends Abs
     bind(classOf[InfoApi]).to(classOf[InfoApiImpl])
     bind(classOf[MiningApi]).to(classOf[MiningApiImpl])
     bind(classOf[PaymentsApi]).to(classOf[PaymentsApiImpl])
+    bind(classOf[NISPDatabase]).toProvider(classOf[NISPDatabaseProvider]).asEagerSingleton()
+    bind(classOf[EvaluationLedger]).toProvider(classOf[EvaluationLedgerProvider]).asEagerSingleton()
     bind[StratumServer](classOf[StratumServer]).asEagerSingleton()
     bind[BlockPolling](classOf[BlockPolling]).asEagerSingleton()
   }
@@ -1,6 +1,6 @@
 package api
 
-import lfsm.{LFSMPhase, NISPTree}
+import lfsm.LFSMPhase
 import model.ApiError
 import model.BlockMiners
 import model.PoolBlock
@@ -15,7 +15,7 @@ class BlocksApiImpl extends BlocksApi {
     * @inheritdoc
     */
   override def getBlockById(utxoId: String, cache: SyncCacheApi): Option[PoolBlock] = {
-    val optNISPTree = cache.get[NISPTree](utxoId)
+    val optNISPTree = NISPTreeCache.trees(cache).get(utxoId)
     optNISPTree match {
       case Some(nispTree) =>
         val phase = nispTree.phase match {
@@ -32,7 +32,7 @@ class BlocksApiImpl extends BlocksApi {
     * @inheritdoc
     */
   override def getBlockMinersById(utxoId: String, cache: SyncCacheApi): Option[List[BlockMiners]] = {
-    val optNISPTree = cache.get[NISPTree](utxoId)
+    val optNISPTree = NISPTreeCache.trees(cache).get(utxoId)
     optNISPTree.map(n => n.minerSet.map(BlockMiners(_)).toList)
   }
 
@@ -40,19 +40,16 @@ class BlocksApiImpl extends BlocksApi {
     * @inheritdoc
     */
   override def getBlocksByHeight(fromHeight: Option[Int], toHeight: Option[Int], cache: SyncCacheApi): List[String] = {
-    // TODO: Implement better logic
-    val fullSet = cache.get[Seq[String]](NISPTreeCache.TREE_SET).get
-    val blocks = for(t <- fullSet) yield t -> cache.get[NISPTree](t).get
     val startHeight = fromHeight.getOrElse(0)
     val endHeight = toHeight.flatMap{h => if(h < 1) None else Some(h)}.getOrElse(10000000)
-    blocks.filter(b => b._2.startHeight >= startHeight && b._2.startHeight < endHeight).map(_._1).toList
+    NISPTreeCache.trees(cache).startingBetween(startHeight, endHeight).map(_._1).toList
   }
 
   /**
     * @inheritdoc
     */
   override def getContractIds(limit: Option[Int], offset: Option[Int], cache: SyncCacheApi): List[String] = {
-    val set = cache.get[Seq[String]](NISPTreeCache.TREE_SET).get
+    val set = NISPTreeCache.trees(cache).ids
     val page = ApiHelper.handlePagination(offset, limit)
     set.slice(page._1, page._1 + page._2).toList
   }
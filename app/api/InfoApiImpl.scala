@@ -15,7 +15,6 @@ class InfoApiImpl extends InfoApi {
     */
   override def getLithosInfo(cache: SyncCacheApi): LithosInfo = {
 
-    val treeSet = cache.get[Seq[String]](NISPTreeCache.TREE_SET).get
-    LithosInfo(treeSet.size, LFSMSync.synced)
+    LithosInfo(NISPTreeCache.trees(cache).size, LFSMSync.synced)
   }
 }
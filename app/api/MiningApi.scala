@@ -2,6 +2,7 @@ package api
 
 import play.api.libs.json._
 import model.ApiError
+import model.NISPDatabaseInfo
 import model.NISPRepresentation
 import model.StratumInfo
 import play.api.Configuration
@@ -20,4 +21,10 @@ trait MiningApi {
     * Information about the Lithos stratum
     */
   def getStratumInfo(config: Configuration): StratumInfo
+
+  /**
+    * Get NISP database statistics
+    * Number of NISPs and super shares stored by the stratum, their size and the heights they span
+    */
+  def getNISPStats(): NISPDatabaseInfo
 }
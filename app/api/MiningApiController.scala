@@ -5,6 +5,7 @@ import javax.inject.{Inject, Singleton}
 import play.api.libs.json._
 import play.api.mvc._
 import model.ApiError
+import model.NISPDatabaseInfo
 import model.NISPRepresentation
 import model.StratumInfo
 import openapitools.OpenApiExceptions
@@ -63,6 +64,19 @@ class MiningApiController @Inject()(cc: ControllerComponents, api: MiningApi, co
     Ok(json)
   }
 
+  /**
+    * GET /mining/nisp
+    */
+  def getNISPStats(): Action[AnyContent] = Action { request =>
+    def executeApi(): NISPDatabaseInfo = {
+      api.getNISPStats()
+    }
+
+    val result = executeApi()
+    val json = Json.toJson(result)
+    Ok(json)
+  }
+
   private def splitCollectionParam(paramValues: String, collectionFormat: String): List[String] = {
     val splitBy =
       collectionFormat match {
@@ -3,22 +3,24 @@ package api
 import configs.StratumConfig
 import lfsm.LFSMHelpers
 import model.ApiError
+import model.NISPDatabaseInfo
 import model.NISPRepresentation
 import model.StratumInfo
 import nisp.NISPDatabase
 import org.bouncycastle.util.encoders.Hex
 import play.api.Configuration
 
+import javax.inject.Inject
+
 /**
   * Provides a default implementation for [[MiningApi]].
   */
-class MiningApiImpl extends MiningApi {
+class MiningApiImpl @Inject()(nispDb: NISPDatabase) extends MiningApi {
   /**
     * @inheritdoc
     */
   override def getBestNISPAtHeight(height: Int, score: Long): Option[NISPRepresentation] = {
 
-    val nispDb = new NISPDatabase
     val bestNISP = nispDb.getBestValidNISP(height, score)
     bestNISP.map(n => NISPRepresentation(n.score, height,
       n.shares.map(s => Hex.toHexString(s.headerBytes)).toList, Hex.toHexString(n.serialize)))
@@ -36,4 +38,12 @@ class MiningApiImpl extends MiningApi {
     StratumInfo(stratumConfig.diff, realTau, stratumConfig.reduceShareMessages, -1.0)
   }
 
+  /**
+    * @inheritdoc
+    */
+  override def getNISPStats(): NISPDatabaseInfo = {
+    val stats = nispDb.stats
+    NISPDatabaseInfo(stats.entries, stats.shares, stats.bytes, stats.minHeight, stats.maxHeight)
+  }
+
 }
@@ -15,4 +15,16 @@ class StratumConfig(config: Configuration){
   val connectionTimeout: Int = config.get[Int]("stratum.connectionTimeout")
   val blockRefreshInterval: Int = config.get[Int]("stratum.blockRefreshInterval")
   val reduceShareMessages: Boolean = config.get[Boolean]("stratum.reduceShareMessages")
+  // "threaded" keeps the JStratum thread-per-connection transport, "selector" uses one NIO selector thread
+  val transport: String = config.getOptional[String]("stratum.transport").getOrElse("threaded")
+  val shareVerifierThreads: Int = config.getOptional[Int]("stratum.shareVerifierThreads")
+    .getOrElse(Runtime.getRuntime.availableProcessors())
+  val shareQueueCapacity: Int = config.getOptional[Int]("stratum.shareQueueCapacity").getOrElse(4096)
+  val vardiffEnabled: Boolean = config.getOptional[Boolean]("stratum.vardiff.enabled").getOrElse(false)
+  val vardiffTargetInterval: FiniteDuration = config.getOptional[FiniteDuration]("stratum.vardiff.targetInterval")
+    .getOrElse(FiniteDuration(10, "seconds"))
+  val vardiffRetargetInterval: FiniteDuration = config.getOptional[FiniteDuration]("stratum.vardiff.retargetInterval")
+    .getOrElse(FiniteDuration(60, "seconds"))
+  val vardiffMinDifficulty: Long = config.getOptional[Long]("stratum.vardiff.minDifficulty").getOrElse(1L)
+  val vardiffMaxDifficulty: Long = config.getOptional[Long]("stratum.vardiff.maxDifficulty").getOrElse(1L << 20)
 }
@@ -8,4 +8,8 @@ class SyncConfig(config: Configuration){
 
   val startHeight: Int = config.get[Int]("sync.startHeight")
   val listeningInterval: FiniteDuration = config.get[FiniteDuration]("sync.listeningInterval")
+  // Blocks fetched ahead of the one being applied while catching up, 1 syncs one block at a time
+  val window: Int = Math.max(1, config.getOptional[Int]("sync.window").getOrElse(16))
+  // Blocks between LFSM snapshots while catching up, 0 disables snapshots and always syncs from startHeight
+  val checkpointInterval: Int = config.getOptional[Int]("sync.checkpointInterval").getOrElse(500)
 }
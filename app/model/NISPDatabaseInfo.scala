@@ -0,0 +1,23 @@
+package model
+
+import play.api.libs.json._
+
+/**
+  * Contents of the local NISP database
+  * @param entries Number of heights with a stored NISP
+  * @param shares Total number of super shares across all stored NISPs
+  * @param bytes Total serialized size of all stored NISPs
+  * @param minHeight Lowest height with a stored NISP
+  * @param maxHeight Highest height with a stored NISP
+  */
+case class NISPDatabaseInfo(
+  entries: Long,
+  shares: Long,
+  bytes: Long,
+  minHeight: Option[Int],
+  maxHeight: Option[Int]
+)
+
+object NISPDatabaseInfo {
+  implicit lazy val nispDatabaseInfoJsonFormat: Format[NISPDatabaseInfo] = Json.format[NISPDatabaseInfo]
+}
@@ -0,0 +1,214 @@
+package state
+
+import lfsm.{LFSMPhase, NISPTree, TreeOperation}
+import org.slf4j.{Logger, LoggerFactory}
+import play.api.cache.SyncCacheApi
+import utils.NISPTreeCache.{TRACKED_PAYOUTS, TREE_SET}
+import utils.{NISPTreeCache, NISPTreeRegistry, PayoutRecord}
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, FileInputStream, FileOutputStream, IOException}
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.zip.{DeflaterOutputStream, InflaterInputStream}
+import scala.util.{Failure, Success, Try}
+
+/**
+ * Checkpoints of the full LFSM state kept in the cache, so sync can resume from the last checkpoint after a
+ * restart instead of from `sync.startHeight`.
+ *
+ * A snapshot is a single file with a magic number and format version, followed by a deflated body. NISPTree
+ * dictionaries are stored as the operations that built them, and are rebuilt by replaying those operations and
+ * checking the result against the stored digest.
+ */
+object LFSMSnapshot {
+  private val logger: Logger = LoggerFactory.getLogger("LFSMSnapshot")
+  final val SNAPSHOT_DIR = ".lithos/lfsm"
+  final val VERSION = 1
+  private final val MAGIC = 0x4c46534d // "LFSM"
+  private final val FILE_NAME = "snapshot.bin"
+
+  /**
+   * LFSM state after applying the block `blockId` at `height`
+   */
+  case class Checkpoint(height: Int, blockId: String, trees: Seq[(String, NISPTree)], payouts: Seq[PayoutRecord])
+
+  /**
+   * Reads the current LFSM state out of the cache. Must be called between blocks, from the thread applying them.
+   */
+  def capture(cache: SyncCacheApi, height: Int, blockId: String): Checkpoint = {
+    val trees   = NISPTreeCache.trees(cache).entries
+    val payouts = cache.get[Seq[PayoutRecord]](TRACKED_PAYOUTS).getOrElse(Seq.empty[PayoutRecord])
+    Checkpoint(height, blockId, trees, payouts)
+  }
+
+  /**
+   * Replaces the LFSM state in the cache with the checkpoint's
+   */
+  def restore(cache: SyncCacheApi, checkpoint: Checkpoint): Unit = {
+    val registry = new NISPTreeRegistry
+    checkpoint.trees.foreach(t => registry.put(t._1, t._2))
+    cache.set(TREE_SET, registry)
+    cache.set(TRACKED_PAYOUTS, checkpoint.payouts)
+  }
+
+  /**
+   * Writes the checkpoint, replacing the previous one only once it is fully on disk
+   */
+  def write(dir: File, checkpoint: Checkpoint): Unit = {
+    if(!dir.exists() && !dir.mkdirs())
+      throw new IOException(s"Could not create snapshot directory ${dir}")
+    val tmp = new File(dir, FILE_NAME + ".tmp")
+    val file = new FileOutputStream(tmp)
+    try {
+      val header = new DataOutputStream(file)
+      header.writeInt(MAGIC)
+      header.writeInt(VERSION)
+      header.flush()
+      val deflater = new DeflaterOutputStream(file)
+      val out = new DataOutputStream(new BufferedOutputStream(deflater))
+      writeCheckpoint(out, checkpoint)
+      out.flush()
+      deflater.finish()
+      file.getFD.sync()
+    } finally {
+      file.close()
+    }
+    Files.move(tmp.toPath, new File(dir, FILE_NAME).toPath,
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+  }
+
+  /**
+   * @return The last checkpoint written to `dir` with every NISPTree rebuilt, or None if there is none or it cannot
+   *         be read by this version
+   */
+  def read(dir: File): Option[Checkpoint] = {
+    val snapshot = new File(dir, FILE_NAME)
+    if(!snapshot.exists())
+      return None
+
+    Try {
+      val file = new FileInputStream(snapshot)
+      try {
+        val header = new DataInputStream(file)
+        require(header.readInt() == MAGIC, s"${snapshot} is not an LFSM snapshot")
+        val version = header.readInt()
+        require(version == VERSION, s"Snapshot version ${version} is not supported, expected ${VERSION}")
+        readCheckpoint(new DataInputStream(new BufferedInputStream(new InflaterInputStream(file))))
+      } finally {
+        file.close()
+      }
+    } match {
+      case Success(checkpoint) => Some(checkpoint)
+      case Failure(e) =>
+        logger.warn(s"Ignoring unreadable LFSM snapshot: ${e.getMessage}")
+        None
+    }
+  }
+
+  private def writeCheckpoint(out: DataOutputStream, checkpoint: Checkpoint): Unit = {
+    out.writeInt(checkpoint.height)
+    out.writeUTF(checkpoint.blockId)
+    out.writeInt(checkpoint.trees.size)
+    checkpoint.trees.foreach {
+      case (id, tree) =>
+        out.writeUTF(id)
+        writeTree(out, tree)
+    }
+    out.writeInt(checkpoint.payouts.size)
+    checkpoint.payouts.foreach {
+      p =>
+        out.writeUTF(p.txId)
+        out.writeLong(p.amount)
+        out.writeLong(p.score)
+        out.writeUTF(p.utxoId)
+        out.writeUTF(p.blockId)
+        out.writeInt(p.minedHeight)
+        out.writeInt(p.creationHeight)
+    }
+  }
+
+  private def readCheckpoint(in: DataInputStream): Checkpoint = {
+    val height  = in.readInt()
+    val blockId = in.readUTF()
+    val trees   = for(_ <- 0 until in.readInt()) yield in.readUTF() -> readTree(in)
+    val payouts = for(_ <- 0 until in.readInt()) yield {
+      PayoutRecord(in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt())
+    }
+    Checkpoint(height, blockId, trees, payouts)
+  }
+
+  private def writeTree(out: DataOutputStream, tree: NISPTree): Unit = {
+    out.writeInt(tree.numMiners)
+    writeBytes(out, tree.totalScore.toByteArray)
+    out.writeBoolean(tree.currentPeriod.isDefined)
+    tree.currentPeriod.foreach(out.writeLong)
+    out.writeLong(tree.totalReward)
+    out.writeInt(tree.startHeight)
+    out.writeBoolean(tree.hasMiner)
+    out.writeByte(tree.phase match {
+      case LFSMPhase.HOLDING => 0
+      case LFSMPhase.EVAL    => 1
+      case LFSMPhase.PAYOUT  => 2
+    })
+    out.writeInt(tree.minerSet.size)
+    tree.minerSet.foreach(out.writeUTF)
+    out.writeBoolean(tree.evaluated)
+    out.writeUTF(tree.blockId)
+    writeBytes(out, tree.tree.digest)
+    out.writeInt(tree.history.size)
+    tree.history.foreach {
+      case TreeOperation.Insert(key, value) =>
+        out.writeByte(0)
+        writeBytes(out, key)
+        writeBytes(out, value)
+      case TreeOperation.Remove(keys) =>
+        out.writeByte(1)
+        out.writeInt(keys.size)
+        keys.foreach(writeBytes(out, _))
+    }
+  }
+
+  /**
+   * Reads a tree, rebuilding its dictionary from history and checking it against the stored digest
+   */
+  private def readTree(in: DataInputStream): NISPTree = {
+    val numMiners     = in.readInt()
+    val totalScore    = BigInt(readBytes(in))
+    val currentPeriod = if(in.readBoolean()) Some(in.readLong()) else None
+    val totalReward   = in.readLong()
+    val startHeight   = in.readInt()
+    val hasMiner      = in.readBoolean()
+    val phase: LFSMPhase = in.readByte() match {
+      case 0 => LFSMPhase.HOLDING
+      case 1 => LFSMPhase.EVAL
+      case 2 => LFSMPhase.PAYOUT
+      case b => throw new IOException(s"Unknown LFSM phase ${b}")
+    }
+    val minerSet  = (for(_ <- 0 until in.readInt()) yield in.readUTF()).toSet
+    val evaluated = in.readBoolean()
+    val blockId   = in.readUTF()
+    val digest    = readBytes(in)
+    val history   = (for(_ <- 0 until in.readInt()) yield {
+      in.readByte() match {
+        case 0 => TreeOperation.Insert(readBytes(in), readBytes(in))
+        case 1 => TreeOperation.Remove(for(_ <- 0 until in.readInt()) yield readBytes(in))
+        case b => throw new IOException(s"Unknown tree operation ${b}")
+      }
+    }).toVector
+    val tree = TreeOperation.replay(history)
+    if(!(tree.digest sameElements digest))
+      throw new IOException(s"Rebuilt NISPTree of block ${blockId} does not match its stored digest")
+    NISPTree(tree, numMiners, totalScore, currentPeriod, totalReward, startHeight, hasMiner,
+      phase, minerSet, evaluated, blockId, history)
+  }
+
+  private def writeBytes(out: DataOutputStream, bytes: Array[Byte]): Unit = {
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  private def readBytes(in: DataInputStream): Array[Byte] = {
+    val bytes = new Array[Byte](in.readInt())
+    in.readFully(bytes)
+    bytes
+  }
+}
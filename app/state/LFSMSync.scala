@@ -1,133 +1,131 @@
 package state
 
-import lfsm.{LFSMPhase, NISPTree}
-import org.bouncycastle.util.encoders.Hex
-import org.ergoplatform.appkit.{ErgoClient, ErgoProver, ErgoValue}
-import org.ergoplatform.restapi.client.FullBlock
+import lfsm.{ContractRegistry, LFSMPhase}
+import org.ergoplatform.appkit.{BlockchainContext, ErgoClient, ErgoProver, ErgoValue}
+import org.ergoplatform.restapi.client.{ErgoTransaction, ErgoTransactionOutput, FullBlock}
 import org.slf4j.{Logger, LoggerFactory}
 import play.api.cache.SyncCacheApi
-import utils.Helpers.{evalContract, holdingContract, payoutContract}
-import utils.NISPTreeCache.TREE_SET
 import utils.NISPTreeCache
 
-import scala.collection.JavaConverters
+import scala.collection.{JavaConverters, mutable}
 
 object LFSMSync {
   private val logger: Logger = LoggerFactory.getLogger("LFSMSync")
   var synced = false
-  def searchHoldingContracts(fullBlock: FullBlock, client: ErgoClient, cache: SyncCacheApi, prover: ErgoProver): Unit = {
+
+  /**
+   * Applies every holding, evaluation and payout transaction of the block to the cached NISPTrees, in block order.
+   * Each transaction's outputs are looked up by ErgoTree and its first input by box id, so the block is walked
+   * once with a single blockchain context no matter how many contracts it contains.
+   */
+  def scanBlock(fullBlock: FullBlock, client: ErgoClient, cache: SyncCacheApi, prover: ErgoProver): Unit = {
     client.execute {
       ctx =>
+        val contracts = ContractRegistry(ctx)
+        // Reflects the trees created or transformed by earlier transactions of this block
+        val tracked = NISPTreeCache.trees(cache)
         val txs = JavaConverters.asScalaIterator(fullBlock.getBlockTransactions.getTransactions.iterator())
-        val holdingTxs = txs.filter {
-          x =>
-            JavaConverters
-              .asScalaIterator(x.getOutputs.iterator()).toIndexedSeq
-              .map(_.getErgoTree).contains(Hex.toHexString(holdingContract(ctx).propBytes))
-        }
-        holdingTxs.foreach {
-          e =>
-            val output = JavaConverters.asScalaIterator(e.getOutputs.iterator()).toIndexedSeq.find {
-              o => o.getErgoTree == Hex.toHexString(holdingContract(ctx).propBytes)
-            }.get
-            val numMiners = output.getAdditionalRegisters.getOrDefault("R5", "none")
-            numMiners match {
-              case "none" =>
-                logger.warn("Found invalid holding contract, skipping it during sync process")
-              case ergoVal =>
-                if (ergoVal == ErgoValue.of(0).toHex) {
-                  logger.info(s"Found new holding contract in block ${fullBlock.getHeader.getHeight}")
-                  NISPTreeCache.cacheNewHolding(ctx, output, cache, fullBlock)
-                } else if (ErgoValue.fromHex(ergoVal).getValue.asInstanceOf[Int] > 0) {
-                  logger.info(s"Found existing holding contract in block ${fullBlock.getHeader.getHeight}")
-                  NISPTreeCache.cacheExistingHolding(ctx, prover, e.getInputs.get(0), output,
-                    cache, fullBlock.getHeader.getHeight)
-                } else {
-                  logger.warn("Found invalid holding contract, skipping it during sync process")
+
+        txs.foreach {
+          tx =>
+            val outputs = rollupOutputs(tx, contracts)
+            outputs.get(contracts.holding.ergoTreeHex) match {
+              case Some(output) =>
+                applyHolding(ctx, fullBlock, tx, output, cache, prover)
+              case None =>
+                outputs.get(contracts.eval.ergoTreeHex) match {
+                  case Some(output) =>
+                    applyEval(ctx, fullBlock, tx, output, cache, prover)
+                  case None =>
+                    val payout = outputs.get(contracts.payout.ergoTreeHex)
+                    if (payout.isDefined || tracked.contains(tx.getInputs.get(0).getBoxId))
+                      applyPayout(ctx, fullBlock, tx, payout, cache, prover)
                 }
             }
         }
     }
   }
 
-  def searchEvalContracts(fullBlock: FullBlock, client: ErgoClient, cache: SyncCacheApi, prover: ErgoProver): Unit = {
-    client.execute {
-      ctx =>
-        val txs = JavaConverters.asScalaIterator(fullBlock.getBlockTransactions.getTransactions.iterator())
-        val evalTxs = txs.filter {
-          x =>
-            JavaConverters
-              .asScalaIterator(x.getOutputs.iterator()).toIndexedSeq
-              .map(_.getErgoTree).contains(Hex.toHexString(evalContract(ctx).propBytes))
-        }
-        evalTxs.foreach {
-          e =>
-            val output = JavaConverters.asScalaIterator(e.getOutputs.iterator()).toIndexedSeq.find {
-              o => o.getErgoTree == Hex.toHexString(evalContract(ctx).propBytes)
-            }.get
-            val input = e.getInputs.get(0)
-            val optNISPTree = cache.get[NISPTree](input.getBoxId)
-            logger.info(s"Checking payout for ${input.getBoxId}")
-            optNISPTree match {
-              case Some(nispTree) =>
-                nispTree.phase match {
-                  case LFSMPhase.HOLDING =>
-                    logger.info(s"Found new evaluation contract in block ${fullBlock.getHeader.getHeight}")
-                    NISPTreeCache.cacheNewEval(ctx, input, output, cache, fullBlock.getHeader.getHeight)
-                  case LFSMPhase.EVAL =>
-                    logger.info(s"Found existing evaluation contract in block ${fullBlock.getHeader.getHeight}")
-                    NISPTreeCache.cacheExistingEval(ctx, input, e.getInputs.get(1), output, cache,
-                      prover, fullBlock.getHeader.getHeight)
-                  case _ =>
-                    logger.error("NISPTree in invalid phase for evaluation")
-                }
-              case None =>
-                logger.info(s"Skipped NISPTree without genesis history ${input.getBoxId}" +
-                  s" in block ${fullBlock.getHeader.getHeight}")
-            }
-
+  /**
+   * @return The first output of the transaction guarded by each rollup contract, keyed by ErgoTree hex
+   */
+  private def rollupOutputs(tx: ErgoTransaction,
+                            contracts: ContractRegistry.RollupContractSet): mutable.Map[String, ErgoTransactionOutput] = {
+    val found = mutable.HashMap.empty[String, ErgoTransactionOutput]
+    val outputs = tx.getOutputs.iterator()
+    while (outputs.hasNext) {
+      val output = outputs.next()
+      val tree = output.getErgoTree
+      if (!found.contains(tree) && contracts.byErgoTree(tree).isDefined)
+        found.put(tree, output)
+    }
+    found
+  }
 
+  private def applyHolding(ctx: BlockchainContext, fullBlock: FullBlock, tx: ErgoTransaction,
+                           output: ErgoTransactionOutput, cache: SyncCacheApi, prover: ErgoProver): Unit = {
+    val numMiners = output.getAdditionalRegisters.getOrDefault("R5", "none")
+    numMiners match {
+      case "none" =>
+        logger.warn("Found invalid holding contract, skipping it during sync process")
+      case ergoVal =>
+        if (ergoVal == ErgoValue.of(0).toHex) {
+          logger.info(s"Found new holding contract in block ${fullBlock.getHeader.getHeight}")
+          NISPTreeCache.cacheNewHolding(ctx, output, cache, fullBlock)
+        } else if (ErgoValue.fromHex(ergoVal).getValue.asInstanceOf[Int] > 0) {
+          logger.info(s"Found existing holding contract in block ${fullBlock.getHeader.getHeight}")
+          NISPTreeCache.cacheExistingHolding(ctx, prover, tx.getInputs.get(0), output,
+            cache, fullBlock.getHeader.getHeight)
+        } else {
+          logger.warn("Found invalid holding contract, skipping it during sync process")
         }
     }
   }
 
-  def searchPayoutContracts(fullBlock: FullBlock, client: ErgoClient, cache: SyncCacheApi, prover: ErgoProver): Unit = {
-    client.execute {
-      ctx =>
-        val txs = JavaConverters.asScalaIterator(fullBlock.getBlockTransactions.getTransactions.iterator())
-        val payoutTxs = txs.filter {
-          x =>
-            JavaConverters
-              .asScalaIterator(x.getOutputs.iterator()).toIndexedSeq
-              .map(_.getErgoTree).contains(Hex.toHexString(payoutContract(ctx).propBytes)) ||
-              cache.get[Seq[String]](TREE_SET).get.contains(x.getInputs.get(0).getBoxId)
+  private def applyEval(ctx: BlockchainContext, fullBlock: FullBlock, tx: ErgoTransaction,
+                        output: ErgoTransactionOutput, cache: SyncCacheApi, prover: ErgoProver): Unit = {
+    val input = tx.getInputs.get(0)
+    val optNISPTree = NISPTreeCache.trees(cache).get(input.getBoxId)
+    logger.info(s"Checking payout for ${input.getBoxId}")
+    optNISPTree match {
+      case Some(nispTree) =>
+        nispTree.phase match {
+          case LFSMPhase.HOLDING =>
+            logger.info(s"Found new evaluation contract in block ${fullBlock.getHeader.getHeight}")
+            NISPTreeCache.cacheNewEval(ctx, input, output, cache, fullBlock.getHeader.getHeight)
+          case LFSMPhase.EVAL =>
+            logger.info(s"Found existing evaluation contract in block ${fullBlock.getHeader.getHeight}")
+            NISPTreeCache.cacheExistingEval(ctx, input, tx.getInputs.get(1), output, cache,
+              prover, fullBlock.getHeader.getHeight)
+          case _ =>
+            logger.error("NISPTree in invalid phase for evaluation")
         }
-        payoutTxs.foreach {
-          e =>
-            val output = JavaConverters.asScalaIterator(e.getOutputs.iterator()).toIndexedSeq.find {
-              o => o.getErgoTree == Hex.toHexString(payoutContract(ctx).propBytes)
-            }
-            val input = e.getInputs.get(0)
-            val optNISPTree = cache.get[NISPTree](input.getBoxId)
-            logger.info(s"Checking payout for ${input.getBoxId}")
-            optNISPTree match {
-              case Some(nispTree) =>
-                nispTree.phase match {
-                  case LFSMPhase.EVAL =>
-                    logger.info(s"Found new payout contract in block ${fullBlock.getHeader.getHeight}")
-                    NISPTreeCache.cacheNewPayout(ctx, input, output.get, cache, fullBlock.getHeader.getHeight)
-                  case LFSMPhase.PAYOUT =>
-                    logger.info(s"Found existing payout contract in block ${fullBlock.getHeader.getHeight}")
-                    NISPTreeCache.cacheExistingPayout(ctx, input, output, cache, prover, fullBlock, e)
-                  case _ =>
-                    logger.error("NISPTree in invalid phase for payouts")
-                }
-              case None =>
-                logger.info(s"Skipped NISPTree without genesis history ${input.getBoxId}" +
-                  s" in block ${fullBlock.getHeader.getHeight}")
-            }
+      case None =>
+        logger.info(s"Skipped NISPTree without genesis history ${input.getBoxId}" +
+          s" in block ${fullBlock.getHeader.getHeight}")
+    }
+  }
 
+  private def applyPayout(ctx: BlockchainContext, fullBlock: FullBlock, tx: ErgoTransaction,
+                          output: Option[ErgoTransactionOutput], cache: SyncCacheApi, prover: ErgoProver): Unit = {
+    val input = tx.getInputs.get(0)
+    val optNISPTree = NISPTreeCache.trees(cache).get(input.getBoxId)
+    logger.info(s"Checking payout for ${input.getBoxId}")
+    optNISPTree match {
+      case Some(nispTree) =>
+        nispTree.phase match {
+          case LFSMPhase.EVAL =>
+            logger.info(s"Found new payout contract in block ${fullBlock.getHeader.getHeight}")
+            NISPTreeCache.cacheNewPayout(ctx, input, output.get, cache, fullBlock.getHeader.getHeight)
+          case LFSMPhase.PAYOUT =>
+            logger.info(s"Found existing payout contract in block ${fullBlock.getHeader.getHeight}")
+            NISPTreeCache.cacheExistingPayout(ctx, input, output, cache, prover, fullBlock, tx)
+          case _ =>
+            logger.error("NISPTree in invalid phase for payouts")
         }
+      case None =>
+        logger.info(s"Skipped NISPTree without genesis history ${input.getBoxId}" +
+          s" in block ${fullBlock.getHeader.getHeight}")
     }
   }
 }
@@ -1,6 +1,6 @@
 package state
 
-import evaluation.Evaluator
+import evaluation.{EvaluationLedger, Evaluator, FraudCheck}
 import lfsm.LFSMPhase.{EVAL, HOLDING, PAYOUT}
 import lfsm.rollup.RollupContracts
 import lfsm.{LFSMHelpers, NISPTree}
@@ -16,7 +16,6 @@ import sigma.{AvlTree, Colls}
 import sigma.data.CBigInt
 import utils.Helpers.{evalContract, holdingContract, payoutContract}
 import utils.NISPTreeCache
-import utils.NISPTreeCache.TREE_SET
 import work.lithos.mutations.{Contract, InputUTXO, TxBuilder, UTXO}
 
 import scala.util.{Failure, Success, Try}
@@ -24,29 +23,66 @@ import scala.util.{Failure, Success, Try}
 object LFSMTransformer {
   private val logger: Logger = LoggerFactory.getLogger("LFSMTransformer")
 
-  def onSync(client: ErgoClient, cache: SyncCacheApi, prover: ErgoProver, diff: String): Unit = {
+  def onSync(client: ErgoClient, cache: SyncCacheApi, prover: ErgoProver, diff: String, nispDB: NISPDatabase,
+             ledger: EvaluationLedger): Unit = {
     logger.info("Starting LFSM state updates")
-    val treeSet   = cache.get[Seq[String]](NISPTreeCache.TREE_SET).get
-    val nispTrees = for(t <- treeSet) yield t -> cache.get[NISPTree](t).get
+    val nispTrees = NISPTreeCache.trees(cache)
 
     logger.info(s"Found ${nispTrees.size} NISPTrees")
     client.execute{
       ctx =>
         val boxLoader    = new BoxLoader(ctx).loadBoxes
-        val holdingTrees = nispTrees.filter(h => h._2.phase == HOLDING)
-        val evalTrees    = nispTrees.filter(h => h._2.phase == EVAL)
-        val payoutTrees  = nispTrees.filter(h => h._2.phase == PAYOUT)
-        checkHoldingTransforms(ctx, holdingTrees, prover, boxLoader)
-        checkEvalTransforms(ctx, evalTrees, prover, boxLoader)
+        val height       = ctx.getHeight
+        // Trees whose holding or evaluation period ended are transformed, the rest are still open for submissions
+        val holdingDue   = nispTrees.dueBy(HOLDING, height)
+        val holdingOpen  = nispTrees.openAt(HOLDING, height)
+        val evalDue      = nispTrees.dueBy(EVAL, height)
+        val evalOpen     = nispTrees.openAt(EVAL, height)
+        val payoutTrees  = nispTrees.inPhase(PAYOUT)
+        checkHoldingTransforms(ctx, holdingDue, prover, boxLoader)
+        checkEvalTransforms(ctx, evalDue, prover, boxLoader)
         attemptPayouts(ctx, payoutTrees, prover, boxLoader)
-        attemptHoldingSubmissions(ctx, holdingTrees, prover, diff, boxLoader, cache)
-        attemptEvaluation(ctx, evalTrees, prover, boxLoader, cache)
+        attemptHoldingSubmissions(ctx, holdingOpen, prover, diff, boxLoader, cache, nispDB)
+        attemptEvaluation(ctx, evalOpen, prover, boxLoader, cache, ledger)
+        pruneNISPs(nispDB, height, nispTrees.inPhase(HOLDING))
+        pruneVerdicts(ledger, height)
+    }
+  }
+
+  /**
+   * Removes stored NISPs that no holding tree can use anymore. NISPs are submitted with shares from the
+   * `NISP_WINDOW` blocks before their holding box was created, and no holding box is older than its tree's block.
+   */
+  private def pruneNISPs(nispDB: NISPDatabase, height: Int, holdingTrees: Seq[(String, NISPTree)]): Unit = {
+    val oldestHolding = (holdingTrees.map(_._2.startHeight) :+ height).min
+    val floor = oldestHolding - LFSMHelpers.NISP_WINDOW.toInt
+    Try(nispDB.prune(floor)) match {
+      case Success(removed) =>
+        if(removed > 0)
+          logger.info(s"Pruned ${removed} NISPs below height ${floor}")
+      case Failure(e) =>
+        logger.error("Failed to prune NISPs", e)
+    }
+  }
+
+  /**
+   * Removes ledger verdicts of finished evaluations. Eval trees are evaluated against the block their holding period
+   * started at, and are done once both periods have passed. Pruning a verdict too early only means its NISP is
+   * checked again.
+   */
+  private def pruneVerdicts(ledger: EvaluationLedger, height: Int): Unit = {
+    val floor = height - (LFSMHelpers.HOLDING_PERIOD + LFSMHelpers.EVAL_PERIOD).toInt
+    Try(ledger.prune(floor)) match {
+      case Success(removed) =>
+        if(removed > 0)
+          logger.info(s"Pruned ${removed} evaluation verdicts below height ${floor}")
+      case Failure(e) =>
+        logger.error("Failed to prune evaluation verdicts", e)
     }
   }
   // TODO: Add disable for transforms
-  private def checkHoldingTransforms(ctx: BlockchainContext, holdingTrees: Seq[(String, NISPTree)],
+  private def checkHoldingTransforms(ctx: BlockchainContext, transformable: Seq[(String, NISPTree)],
                                      prover: ErgoProver, loader: BoxLoader): Unit = {
-    val transformable = holdingTrees.filter(h => ctx.getHeight - h._2.currentPeriod.get >= LFSMHelpers.HOLDING_PERIOD)
     val transforms = transformable.map(t => Try(transformHolding(ctx, t, prover, loader)))
     if(transforms.exists(_.isSuccess)) {
       logger.info(s"Transformed ${transforms.count(_.isSuccess)} holding utxos successfully")
@@ -69,9 +105,8 @@ object LFSMTransformer {
   }
 
   // TODO: Add disable for transforms
-  private def checkEvalTransforms(ctx: BlockchainContext, evalTrees: Seq[(String, NISPTree)],
+  private def checkEvalTransforms(ctx: BlockchainContext, transformable: Seq[(String, NISPTree)],
                                   prover: ErgoProver, loader: BoxLoader): Unit = {
-    val transformable = evalTrees.filter(h => ctx.getHeight - h._2.currentPeriod.get >= LFSMHelpers.EVAL_PERIOD)
     val transforms = transformable.map(t => Try(transformEval(ctx, t, prover, loader)))
     if(transforms.exists(_.isSuccess)) {
       logger.info(s"Transformed ${transforms.count(_.isSuccess)} eval utxos successfully")
@@ -93,10 +128,16 @@ object LFSMTransformer {
   }
 
   private def attemptEvaluation(ctx: BlockchainContext, evalTrees: Seq[(String, NISPTree)],
-                                 prover: ErgoProver, loader: BoxLoader, cache: SyncCacheApi) = {
-    val transformable = evalTrees.filter(h => ctx.getHeight - h._2.currentPeriod.get < LFSMHelpers.EVAL_PERIOD)
-    val unchecked = transformable.filter(!_._2.evaluated)
-    val evaluations = unchecked.map(t => Try(evaluateSubmissions(ctx, t, prover, loader, cache)))
+                                 prover: ErgoProver, loader: BoxLoader, cache: SyncCacheApi,
+                                 ledger: EvaluationLedger) = {
+    val unchecked = evalTrees.filter(!_._2.evaluated)
+    val evaluators = unchecked.map(t => Try(evaluatorFor(ctx, t, prover, loader)))
+    // NISPs of every tree are checked off-chain at once, fraud proofs are still built one tree at a time since
+    // they take inputs from the same loader. Verdicts from earlier syncs are reused from the ledger
+    val checks = evaluators.par.map(_.map(e => e -> e.checkUnseen(ledger))).seq
+    val evaluations = unchecked.zip(checks).map{
+      case (t, checked) => checked.map{ case (e, suspects) => evaluateSubmissions(ctx, t, e, suspects, cache) }
+    }
     if(evaluations.exists(_.isSuccess)) {
       logger.info(s"Evaluated ${evaluations.count(_.isSuccess)} eval utxos successfully")
     }
@@ -139,12 +180,10 @@ object LFSMTransformer {
   }
 
   private def attemptHoldingSubmissions(ctx: BlockchainContext, holdingTrees: Seq[(String, NISPTree)],
-                                        prover: ErgoProver, diff: String, loader: BoxLoader, cache: SyncCacheApi): Unit = {
-    val transformable = holdingTrees.filter{
-      h =>
-        ctx.getHeight - h._2.currentPeriod.get < LFSMHelpers.HOLDING_PERIOD && !h._2.hasMiner
-    }
-    val transforms = transformable.map(t => Try(submitNISPs(ctx, t, prover, diff, loader, cache)))
+                                        prover: ErgoProver, diff: String, loader: BoxLoader, cache: SyncCacheApi,
+                                        nispDB: NISPDatabase): Unit = {
+    val transformable = holdingTrees.filter(!_._2.hasMiner)
+    val transforms = transformable.map(t => Try(submitNISPs(ctx, t, prover, diff, loader, cache, nispDB)))
     if(transforms.exists(_.isSuccess)) {
       logger.info(s"Submitted NISPs to ${transforms.count(_.isSuccess)} holding utxos successfully")
     }
@@ -215,16 +254,24 @@ object LFSMTransformer {
     logger.info(s"Sent transaction ${txId} to transform eval contract")
   }
 
-  private def evaluateSubmissions(ctx: BlockchainContext, eval: (String, NISPTree),
-                                  prover: ErgoProver, loader: BoxLoader, cache: SyncCacheApi): Unit = {
-    logger.info(s"Evaluating NISP submissions for NISPTree ${eval._1}")
+  private def evaluatorFor(ctx: BlockchainContext, eval: (String, NISPTree),
+                           prover: ErgoProver, loader: BoxLoader): Evaluator = {
     val fpControl = LFSMHelpers.getFPControlBox(ctx)
     val evalBox = InputUTXO(ctx.getBoxesById(eval._1).head)
     // Sort miners randomly for more unique fp transactions, helps to prevent competing fraud proof checks
-    // TODO: Optimize here by preventing redundant evaluations
     val currentMiners = eval._2.minerSet.toSeq.map(Hex.decode).sortBy(_ => Math.random())
-    val evaluator = Evaluator(ctx, prover, evalBox, eval._2, currentMiners, fpControl, loader)
-    val attemptEval = Try(evaluator.evaluate)
+    Evaluator(ctx, prover, evalBox, eval._2, currentMiners, fpControl, loader)
+  }
+
+  /**
+   * Builds and sends fraud proofs for the miners that failed `Evaluator.checkUnseen`, or marks the tree as evaluated if
+   * none did
+   */
+  private def evaluateSubmissions(ctx: BlockchainContext, eval: (String, NISPTree), evaluator: Evaluator,
+                                  suspects: Seq[(Array[Byte], Seq[FraudCheck.Condition])],
+                                  cache: SyncCacheApi): Unit = {
+    logger.info(s"Evaluating NISP submissions for NISPTree ${eval._1}")
+    val attemptEval = Try(evaluator.evaluate(suspects))
     attemptEval match {
       case Failure(e) =>
         e match {
@@ -240,13 +287,13 @@ object LFSMTransformer {
           txIds.foreach(id => logger.info(s"Sent fraud proof transaction ${id} as part of evaluation"))
         }else{
           logger.info(s"Found no fraud in NISPTree ${eval._1}")
-          cache.set(eval._1, eval._2.copy(evaluated = true))
+          NISPTreeCache.trees(cache).update(eval._1, eval._2.copy(evaluated = true))
         }
     }
   }
 
   private def submitNISPs(ctx: BlockchainContext, holdTree: (String, NISPTree), prover: ErgoProver,
-                          diff: String, loader: BoxLoader, cache: SyncCacheApi): Unit = {
+                          diff: String, loader: BoxLoader, cache: SyncCacheApi, nispDB: NISPDatabase): Unit = {
     logger.info(s"Submitting NISP to NISPTree ${holdTree._1}")
     val holdingInput = InputUTXO(ctx.getBoxesById(holdTree._1).head)
 
@@ -258,7 +305,6 @@ object LFSMTransformer {
     copiedTree.prover.generateProof() // Reset proof for copied tree, proofs will be incorrect if this is not done!
     val score = LFSMHelpers.convertTauOrScore(BigInt(LFSMHelpers.parseDiffValueForStratum(diff).get))
     val realDigest = Hex.toHexString(holdingInput.registers.head.getValue.asInstanceOf[AvlTree].digest.toArray)
-    val nispDB = new NISPDatabase
     val bestNISP = nispDB.getBestValidNISP(holdingInput.input.getCreationHeight, score.toLong)
     bestNISP match {
       case Some(nisp) =>
@@ -305,9 +351,7 @@ object LFSMTransformer {
         logger.info(s"Sent transaction ${txId} to submit NISP")
       case None =>
 
-        cache.remove(holdTree._1)
-        val treeSet = cache.get[Seq[String]](TREE_SET).get
-        cache.set(TREE_SET, treeSet.filter(_ != holdTree._1))
+        NISPTreeCache.trees(cache).remove(holdTree._1)
         throw new NoValidNISPException(s"Dropped NISPTree ${holdTree._1} for block ${holdTree._2.startHeight} " +
           s"due to not having enough super shares to produce a valid NISP")
     }
@@ -4,26 +4,31 @@ import akka.Done
 import akka.actor.{ActorSystem, Cancellable, CoordinatedShutdown}
 import configs.TasksConfig.TaskConfiguration
 import configs.{Contexts, NodeConfig, StateConfig, StratumConfig, SyncConfig, TasksConfig}
-import lfsm.LFSMHelpers
+import evaluation.EvaluationLedger
+import lfsm.{ContractRegistry, LFSMHelpers}
+import nisp.NISPDatabase
 import org.ergoplatform.appkit.impl.NodeAndExplorerDataSourceImpl
 import org.ergoplatform.restapi.client.FullBlock
 import org.ergoplatform.sdk.BlockchainContext
 import org.slf4j.{Logger, LoggerFactory}
 import play.api.Configuration
 import play.api.cache.{AsyncCacheApi, SyncCacheApi}
-import state.{LFSMSync, LFSMTransformer}
+import state.{LFSMSnapshot, LFSMSync, LFSMTransformer}
 import stratum.ErgoStratumServer
 import stratum.data.{Data, Options}
-import utils.NISPTreeCache
+import utils.{NISPTreeCache, NISPTreeRegistry}
 
+import java.io.File
+import java.util.ArrayDeque
 import javax.inject.{Inject, Singleton}
-import scala.concurrent.duration.DurationInt
+import scala.concurrent.duration.{Duration, DurationInt}
 import scala.concurrent.{Await, ExecutionContext, Future}
 import scala.language.postfixOps
 import scala.util.{Failure, Success, Try}
 
 @Singleton
-class BlockPolling @Inject()(cache: SyncCacheApi, system: ActorSystem, config: Configuration, cs: CoordinatedShutdown) {
+class BlockPolling @Inject()(cache: SyncCacheApi, system: ActorSystem, config: Configuration, cs: CoordinatedShutdown,
+                             nispDatabase: NISPDatabase, ledger: EvaluationLedger) {
 
   val logger: Logger = LoggerFactory.getLogger("BlockPolling")
   val taskConfig: TaskConfiguration = new TasksConfig(config).blockPolling
@@ -33,50 +38,45 @@ class BlockPolling @Inject()(cache: SyncCacheApi, system: ActorSystem, config: C
   val nodeConfig: NodeConfig = new NodeConfig(config)
   val stratumConfig: StratumConfig = new StratumConfig(config)
   val stateConfig: StateConfig     = new StateConfig(config)
+  private val snapshotDir = new File(LFSMSnapshot.SNAPSHOT_DIR)
   if(taskConfig.enabled) {
     logger.info("Starting synchronization via block polling")
     logger.info(s"Synchronization will start at height ${syncConfig.startHeight}")
 
     var polling: Option[Cancellable] = None
     var currentHeight = syncConfig.startHeight
-    var synced = false
     val nodeDataSource = nodeConfig.getClient.getDataSource.asInstanceOf[NodeAndExplorerDataSourceImpl]
 
-    cache.set(NISPTreeCache.TREE_SET, Seq.empty[String])
+    cache.set(NISPTreeCache.TREE_SET, new NISPTreeRegistry)
     //logger.info(s"Polling block at height ${currentHeight} for synchronization")
     // Blocking code until synced
     Future{
-      while(currentHeight <= chainHeight && !synced) {
-        loadBlockSync(currentHeight, nodeDataSource) match {
-          case Success(value) =>
-            if (currentHeight != chainHeight) {
-              currentHeight = currentHeight + 1
-            } else {
-              // Start listening once synced
-              logger.info(s"Finished syncing to height ${chainHeight}")
-              logger.info(s"Now listening every ${syncConfig.listeningInterval} for new blocks")
-              LFSMSync.synced = true
-              system.scheduler.scheduleWithFixedDelay(initialDelay = 10 seconds,
-                delay = syncConfig.listeningInterval)({
-                () =>
-                  if (currentHeight <= chainHeight) {
-                    logger.info(s"Found new block ${currentHeight} on listen")
-                    loadBlockAsync(currentHeight, nodeDataSource).onComplete {
-                      case Failure(exception) =>
-                        logger.error(s"Failed to load block ${currentHeight} while listening", exception)
-                      case Success(value) =>
-                        currentHeight = currentHeight + 1
-                        if(currentHeight > chainHeight)
-                          LFSMTransformer.onSync(nodeConfig.getClient, cache, nodeConfig.prover, stratumConfig.diff)
-                    }(contexts.pollingContext)
-                  }
-
-              })(contexts.pollingContext)
-              synced = true
-            }
-          case Failure(exception) => logger.error(s"Failed to load block ${currentHeight} while syncing", exception)
-        }
-      }
+      // Compile contracts before the first block instead of while loading it
+      nodeConfig.getClient.execute(ctx => ContractRegistry.warm(ctx))
+      currentHeight = resume(nodeDataSource).getOrElse(currentHeight)
+      currentHeight = catchUp(currentHeight, nodeDataSource)
+      // Start listening once synced
+      logger.info(s"Finished syncing to height ${currentHeight - 1}")
+      logger.info(s"Now listening every ${syncConfig.listeningInterval} for new blocks")
+      LFSMSync.synced = true
+      system.scheduler.scheduleWithFixedDelay(initialDelay = 10 seconds,
+        delay = syncConfig.listeningInterval)({
+        () =>
+          val tip = chainHeight
+          if (currentHeight <= tip) {
+            logger.info(s"Found new block ${currentHeight} on listen")
+            loadBlockAsync(currentHeight, nodeDataSource).onComplete {
+              case Failure(exception) =>
+                logger.error(s"Failed to load block ${currentHeight} while listening", exception)
+              case Success(value) =>
+                currentHeight = currentHeight + 1
+                if(currentHeight > tip)
+                  LFSMTransformer.onSync(nodeConfig.getClient, cache, nodeConfig.prover, stratumConfig.diff, nispDatabase,
+                    ledger)
+            }(contexts.pollingContext)
+          }
+
+      })(contexts.pollingContext)
       //Thread.sleep(taskConfig.interval.toMillis)
     }(contexts.pollingContext)
 
@@ -88,50 +88,122 @@ class BlockPolling @Inject()(cache: SyncCacheApi, system: ActorSystem, config: C
       ctx => ctx.getHeight
     }
   }
-  private def loadBlockSync(height: Int, dataSource: NodeAndExplorerDataSourceImpl): Try[Unit] = {
-    if(height % 100 == 0)
-      logger.info(s"Loading block at height ${height}")
-    Try {
+  /**
+   * Syncs from the given height up to the chain tip. Up to `sync.window` blocks ahead are fetched and decoded
+   * concurrently on the polling dispatcher, while their transactions are applied to the LFSM strictly in height
+   * order on this thread.
+   * @return The next height to load once synced
+   */
+  private def catchUp(from: Int, dataSource: NodeAndExplorerDataSourceImpl): Int = {
+    val inFlight = new ArrayDeque[(Int, Future[FullBlock])]()
+    var next = from
+    var nextFetch = from
+    // The tip is only checked again once the window has drained up to it, not on every block
+    var tip = chainHeight
+    val startedAt = System.nanoTime()
+    var reportedAt = startedAt
+    var reportedHeight = from
+
+    while(next <= tip) {
+      while(inFlight.size() < syncConfig.window && nextFetch <= tip) {
+        inFlight.addLast(nextFetch -> fetchBlock(nextFetch, dataSource))
+        nextFetch = nextFetch + 1
+      }
+      val (height, block) = inFlight.pollFirst()
+      Try(Await.result(block, Duration.Inf)).map{ b => checkBlockTransactions(b); b } match {
+        case Success(_) =>
+          next = next + 1
+          if(next - reportedHeight >= 100) {
+            val now = System.nanoTime()
+            logger.info(s"Synced to height ${height}, ${blocksPerSecond(next - reportedHeight, now - reportedAt)}" +
+              s" blocks/s, ${tip - height} blocks behind")
+            reportedAt = now
+            reportedHeight = next
+          }
+          if(next > tip)
+            tip = chainHeight
+        case Failure(exception) =>
+          logger.error(s"Failed to load block ${height} while syncing", exception)
+          // Blocks fetched past this one are kept, only this height is fetched again
+          inFlight.addFirst(height -> fetchBlock(height, dataSource))
+      }
+    }
+    if(next > from)
+      logger.info(s"Synced ${next - from} blocks at ${blocksPerSecond(next - from, System.nanoTime() - startedAt)} blocks/s")
+    next
+  }
 
+  /**
+   * Restores the LFSM state from the last snapshot, as long as its block is still on the main chain
+   * @return The next height to sync from, or None to sync from `sync.startHeight`
+   */
+  private def resume(dataSource: NodeAndExplorerDataSourceImpl): Option[Int] = {
+    if(syncConfig.checkpointInterval <= 0)
+      return None
+
+    LFSMSnapshot.read(snapshotDir).filter {
+      snapshot =>
+        if(snapshot.height < syncConfig.startHeight) {
+          logger.info(s"Ignoring LFSM snapshot at height ${snapshot.height}, below sync.startHeight")
+          false
+        } else if(!Try(dataSource.getNodeBlocksApi.getFullBlockAt(snapshot.height).execute().body()
+          .contains(snapshot.blockId)).getOrElse(false)) {
+          logger.warn(s"Ignoring LFSM snapshot at height ${snapshot.height}, block ${snapshot.blockId}" +
+            s" is no longer on the main chain")
+          false
+        } else {
+          true
+        }
+    }.map {
+      snapshot =>
+        LFSMSnapshot.restore(cache, snapshot)
+        logger.info(s"Resumed from LFSM snapshot at height ${snapshot.height} with ${snapshot.trees.size} NISPTrees" +
+          s" and ${snapshot.payouts.size} tracked payouts")
+        snapshot.height + 1
+    }
+  }
+
+  private def checkpoint(height: Int, blockId: String): Unit = {
+    if(syncConfig.checkpointInterval > 0) {
+      val start = System.nanoTime()
+      Try(LFSMSnapshot.write(snapshotDir, LFSMSnapshot.capture(cache, height, blockId))) match {
+        case Success(_) =>
+          logger.info(s"Saved LFSM snapshot at height ${height} in ${(System.nanoTime() - start) / 1000000} ms")
+        case Failure(e) =>
+          logger.warn(s"Failed to save LFSM snapshot at height ${height}", e)
+      }
+    }
+  }
+
+  private def blocksPerSecond(blocks: Int, nanos: Long): String = {
+    f"${blocks / Math.max(nanos / 1e9, 1e-3)}%.1f"
+  }
+
+  private def fetchBlock(height: Int, dataSource: NodeAndExplorerDataSourceImpl): Future[FullBlock] = {
+    Future {
       val blockHeader = dataSource
         .getNodeBlocksApi.getFullBlockAt(height)
         .execute()
         .body().get(0)
 
-      val fullBlock = dataSource
+      dataSource
         .getNodeBlocksApi.getFullBlockById(blockHeader)
         .execute()
         .body()
-      checkBlockTransactions(fullBlock)
-    }
-
+    }(contexts.pollingContext)
   }
 
   private def loadBlockAsync(height: Int, dataSource: NodeAndExplorerDataSourceImpl) = {
     implicit val context: ExecutionContext = contexts.pollingContext
-    Future {
-      if (height % 100 == 0)
-        logger.info(s"Loading block at height ${height}")
-      Try {
-
-        val blockHeader = dataSource
-          .getNodeBlocksApi.getFullBlockAt(height)
-          .execute()
-          .body().get(0)
-
-        val fullBlock = dataSource
-          .getNodeBlocksApi.getFullBlockById(blockHeader)
-          .execute()
-          .body()
-        checkBlockTransactions(fullBlock)
-      }
-    }.map(_.get)
-
+    fetchBlock(height, dataSource).map(checkBlockTransactions)
   }
 
   private def checkBlockTransactions(block: FullBlock): Unit = {
-    LFSMSync.searchHoldingContracts(block, nodeConfig.getClient, cache, nodeConfig.prover)
-    LFSMSync.searchEvalContracts(block, nodeConfig.getClient, cache, nodeConfig.prover)
-    LFSMSync.searchPayoutContracts(block, nodeConfig.getClient, cache, nodeConfig.prover)
+    LFSMSync.scanBlock(block, nodeConfig.getClient, cache, nodeConfig.prover)
+    // Snapshots are taken right after a block is applied, from the thread applying blocks. Each one rewrites every
+    // tree's history, so they are only taken every checkpointInterval blocks, also once synced
+    val height = block.getHeader.getHeight
+    if(syncConfig.checkpointInterval > 0 && height % syncConfig.checkpointInterval == 0)
+      checkpoint(height, block.getHeader.getId)
   }
 }
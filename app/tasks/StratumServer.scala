@@ -7,6 +7,7 @@ import akka.util.Timeout
 import configs.{Contexts, NodeConfig, StateConfig, StratumConfig, TasksConfig}
 import configs.TasksConfig.TaskConfiguration
 import lfsm.LFSMHelpers
+import nisp.NISPDatabase
 import org.slf4j.{Logger, LoggerFactory}
 import play.api.Configuration
 import play.api.inject.ApplicationLifecycle
@@ -22,7 +23,8 @@ import scala.concurrent.duration.DurationInt
 import scala.language.postfixOps
 import scala.util.{Failure, Success, Try}
 @Singleton
-class StratumServer @Inject()(system: ActorSystem, config: Configuration, cs: CoordinatedShutdown) {
+class StratumServer @Inject()(system: ActorSystem, config: Configuration, cs: CoordinatedShutdown,
+                              nispDatabase: NISPDatabase) {
 
   val logger: Logger = LoggerFactory.getLogger("StratumServer")
   val taskConfig: TaskConfiguration = new TasksConfig(config).stratumServerTaskConfig
@@ -41,6 +43,14 @@ class StratumServer @Inject()(system: ActorSystem, config: Configuration, cs: Co
         val options = new Options(stratumParams.extraNonce1Size, 256,
           stratumParams.connectionTimeout, stratumParams.blockRefreshInterval,
           nodeConfig.getNodeApi, t, new Data())
+        options.nispDatabase = nispDatabase
+        options.shareVerifierThreads = stratumParams.shareVerifierThreads
+        options.shareQueueCapacity = stratumParams.shareQueueCapacity
+        options.vardiffEnabled = stratumParams.vardiffEnabled
+        options.vardiffTargetInterval = stratumParams.vardiffTargetInterval.toMillis
+        options.vardiffRetargetInterval = stratumParams.vardiffRetargetInterval.toMillis
+        options.vardiffMinDifficulty = stratumParams.vardiffMinDifficulty
+        options.vardiffMaxDifficulty = stratumParams.vardiffMaxDifficulty
         logger.info("Stratum server starting at port " + stratumParams.stratumPort)
         if(stratumParams.reduceShareMessages) {
           val stratumTau = t.divide(new BigInteger("1000"))
@@ -79,8 +89,12 @@ class StratumServer @Inject()(system: ActorSystem, config: Configuration, cs: Co
 
 
 
-        logger.info(s"Stratum server now listening for connections on port ${stratumParams.stratumPort}")
-        Future(server.startListening(stratumParams.stratumPort))(contexts.stratumContext)
+        logger.info(s"Stratum server now listening for connections on port ${stratumParams.stratumPort}" +
+          s" using ${stratumParams.transport} transport")
+        if(stratumParams.transport == "selector")
+          Future(server.startSelectorListening(stratumParams.stratumPort))(contexts.stratumContext)
+        else
+          Future(server.startListening(stratumParams.stratumPort))(contexts.stratumContext)
        // System.out.println("Fully stopped listening")
 
       case Failure(e) =>
@@ -0,0 +1,28 @@
+package utils
+
+import evaluation.EvaluationLedger
+import org.slf4j.{Logger, LoggerFactory}
+import play.api.inject.ApplicationLifecycle
+
+import javax.inject.{Inject, Provider, Singleton}
+import scala.concurrent.Future
+
+/**
+ * Opens the evaluation ledger once at startup and closes it when the application stops
+ */
+@Singleton
+class EvaluationLedgerProvider @Inject()(lifecycle: ApplicationLifecycle) extends Provider[EvaluationLedger] {
+  private val logger: Logger = LoggerFactory.getLogger("EvaluationLedgerProvider")
+
+  private lazy val ledger: EvaluationLedger = {
+    val db = new EvaluationLedger
+    lifecycle.addStopHook {
+      () =>
+        logger.info("Closing evaluation ledger")
+        Future.successful(db.close())
+    }
+    db
+  }
+
+  override def get(): EvaluationLedger = ledger
+}
@@ -1,8 +1,6 @@
 package utils
 
-import lfsm.LFSMHelpers
-import lfsm.collateral.CollateralContract
-import lfsm.rollup.RollupContracts
+import lfsm.ContractRegistry
 import org.bouncycastle.util.encoders.Hex
 import org.ergoplatform.appkit.{BlockchainContext, ErgoId, ErgoProver, ErgoValue}
 import org.ergoplatform.restapi.client.ErgoTransactionOutput
@@ -15,19 +13,19 @@ import java.math.{BigDecimal, BigInteger, RoundingMode}
 import scala.util.Try
 
 object Helpers {
+  // Compiled once per network by ContractRegistry, these are cheap lookups
   def payoutContract(ctx: BlockchainContext): Contract = {
-    RollupContracts.mkPayoutContract(ctx)
+    ContractRegistry(ctx).payout
   }
   def evalContract(ctx: BlockchainContext): Contract = {
-    RollupContracts.mkEvalContract(ctx, LFSMHelpers.EVAL_PERIOD,
-      payoutContract(ctx).hashedPropBytes, LFSMHelpers.getFPToken(ctx))
+    ContractRegistry(ctx).eval
   }
   def holdingContract(ctx: BlockchainContext): Contract = {
-    RollupContracts.mkHoldingContract(ctx, LFSMHelpers.HOLDING_PERIOD, evalContract(ctx).hashedPropBytes)
+    ContractRegistry(ctx).holding
   }
 
   def collateralContract(ctx: BlockchainContext): Contract = {
-    CollateralContract.mkTestnetCollatContract(ctx, holdingContract(ctx).hashedPropBytes)
+    ContractRegistry(ctx).collateral
   }
 
   def pkHexFromBoolean(bool: SigmaBoolean): Option[String] = {
@@ -50,17 +48,10 @@ object Helpers {
   }
 
   def parseOutput(ctx: BlockchainContext, output: ErgoTransactionOutput): InputUTXO = {
-    val holdingHex = holdingContract(ctx).ergoTreeHex
-    val evalHex = evalContract(ctx).ergoTreeHex
-    val payoutHex = payoutContract(ctx).ergoTreeHex
-
-    val contract = output.getErgoTree match {
-      case hex: String if (hex == holdingHex) =>
-        holdingContract(ctx)
-      case hex: String if (hex == evalHex) =>
-        evalContract(ctx)
-      case hex: String if (hex == payoutHex) =>
-        payoutContract(ctx)
+    val contracts = ContractRegistry(ctx)
+    val contract = contracts.byErgoTree(output.getErgoTree) match {
+      case Some(c) if (c eq contracts.holding) || (c eq contracts.eval) || (c eq contracts.payout) => c
+      case _ => throw new MatchError(output.getErgoTree)
     }
     val value = output.getValue
 
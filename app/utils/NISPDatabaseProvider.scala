@@ -0,0 +1,28 @@
+package utils
+
+import nisp.NISPDatabase
+import org.slf4j.{Logger, LoggerFactory}
+import play.api.inject.ApplicationLifecycle
+
+import javax.inject.{Inject, Provider, Singleton}
+import scala.concurrent.Future
+
+/**
+ * Opens the NISP database once at startup and closes it when the application stops
+ */
+@Singleton
+class NISPDatabaseProvider @Inject()(lifecycle: ApplicationLifecycle) extends Provider[NISPDatabase] {
+  private val logger: Logger = LoggerFactory.getLogger("NISPDatabaseProvider")
+
+  private lazy val nispDatabase: NISPDatabase = {
+    val db = new NISPDatabase
+    lifecycle.addStopHook {
+      () =>
+        logger.info("Closing NISP database")
+        Future.successful(db.close())
+    }
+    db
+  }
+
+  override def get(): NISPDatabase = nispDatabase
+}
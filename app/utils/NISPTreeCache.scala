@@ -1,6 +1,6 @@
 package utils
 
-import lfsm.{LFSMHelpers, LFSMPhase, NISPTree}
+import lfsm.{LFSMHelpers, LFSMPhase, NISPTree, TreeOperation}
 import org.bouncycastle.util.encoders.Hex
 import org.ergoplatform.appkit.{Address, BlockchainContext, ErgoProver, ErgoValue, JavaHelpers}
 import org.ergoplatform.restapi.client.{ErgoTransaction, ErgoTransactionInput, ErgoTransactionOutput, FullBlock}
@@ -20,6 +20,13 @@ object NISPTreeCache {
   val logger: Logger = LoggerFactory.getLogger("NISPTreeCache")
   final val TREE_SET = "TREE_SET"
   final val TRACKED_PAYOUTS = "TRACKED_PAYOUTS"
+
+  /**
+   * @return The registry of tracked NISPTrees, kept in the cache under `TREE_SET`
+   */
+  def trees(cache: SyncCacheApi): NISPTreeRegistry = {
+    cache.getOrElseUpdate[NISPTreeRegistry](TREE_SET)(new NISPTreeRegistry)
+  }
   def cacheNewHolding(ctx:BlockchainContext, output: ErgoTransactionOutput, cache: SyncCacheApi, block: FullBlock): Unit = {
     val holdingBox = Helpers.parseOutput(ctx, output)
     val newTree    = PlasmaMap[Array[Byte], Array[Byte]](AvlTreeFlags.AllOperationsAllowed, PlasmaParameters.default)
@@ -28,14 +35,12 @@ object NISPTreeCache {
       blockId = block.getHeader.getId)
 
     logger.info(s"Found genesis for NISPTree ${output.getBoxId} in block ${block.getHeader.getHeight}")
-    cache.set(output.getBoxId, nispTree)
-    val treeSet = cache.get[Seq[String]](TREE_SET).get
-    cache.set(TREE_SET, treeSet :+ output.getBoxId)
+    trees(cache).put(output.getBoxId, nispTree)
   }
   def cacheExistingHolding(ctx:BlockchainContext, prover: ErgoProver, input: ErgoTransactionInput,
                            output: ErgoTransactionOutput, cache: SyncCacheApi, height: Int): Unit = {
     val holdingBox  = Helpers.parseOutput(ctx, output)
-    val optNISPTree = cache.get[NISPTree](input.getBoxId)
+    val optNISPTree = trees(cache).get(input.getBoxId)
     optNISPTree match {
       case Some(oldNISPTree) =>
         val dictionary  = oldNISPTree.tree
@@ -62,11 +67,9 @@ object NISPTreeCache {
         }
         val nextMinerSet = oldNISPTree.minerSet ++ Set(Hex.toHexString(keyValue._1.toArray))
         val nextTree    = oldNISPTree.copy(tree = dictionary, numMiners = nextMiners, totalScore = nextScore,
-          currentPeriod = Some(nextPeriod), hasMiner = isMiner || oldNISPTree.hasMiner, minerSet = nextMinerSet)
-        cache.remove(input.getBoxId)
-        cache.set(output.getBoxId, nextTree)
-        val treeSet = cache.get[Seq[String]](TREE_SET).get
-        cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId) :+ output.getBoxId)
+          currentPeriod = Some(nextPeriod), hasMiner = isMiner || oldNISPTree.hasMiner, minerSet = nextMinerSet,
+          history = oldNISPTree.history :+ TreeOperation.Insert(keyValue._1.toArray, keyValue._2.toArray))
+        trees(cache).transition(input.getBoxId, output.getBoxId, nextTree)
       case None =>
         logger.info(s"Skipped submission application in block ${height}" +
           s" because NISPTree ${input.getBoxId} had no genesis history")
@@ -77,22 +80,17 @@ object NISPTreeCache {
   def cacheNewEval(ctx:BlockchainContext,input: ErgoTransactionInput,
                    output: ErgoTransactionOutput, cache: SyncCacheApi, height: Int): Unit = {
     val evalBox = Helpers.parseOutput(ctx, output)
-    val optNISPTree = cache.get[NISPTree](input.getBoxId)
+    val optNISPTree = trees(cache).get(input.getBoxId)
     optNISPTree match {
       case Some(oldNISPTree) =>
         if(oldNISPTree.hasMiner){
           val nispTree   = oldNISPTree.copy(currentPeriod = Some(evalBox.registers(3).getValue.asInstanceOf[Long]),
             phase = LFSMPhase.EVAL)
-          cache.remove(input.getBoxId)
-          cache.set(output.getBoxId, nispTree)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId) :+ output.getBoxId)
+          trees(cache).transition(input.getBoxId, output.getBoxId, nispTree)
           logger.info(s"Transformed NISPTree ${input.getBoxId} in block ${height} from holding" +
             s" contract to ${output.getBoxId} of evaluation contract")
         }else{
-          cache.remove(input.getBoxId)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId))
+          trees(cache).remove(input.getBoxId)
           logger.info(s"Removed NISPTree ${input.getBoxId} in block ${height} because" +
             s" local miner was not present during holding phase")
         }
@@ -106,7 +104,7 @@ object NISPTreeCache {
   def cacheExistingEval(ctx:BlockchainContext,input: ErgoTransactionInput, fpInput: ErgoTransactionInput,
                         output: ErgoTransactionOutput, cache: SyncCacheApi, prover: ErgoProver, height: Int) = {
     val evalBox = Helpers.parseOutput(ctx, output)
-    val optNISPTree = cache.get[NISPTree](input.getBoxId)
+    val optNISPTree = trees(cache).get(input.getBoxId)
     optNISPTree match {
       case Some(oldNISPTree) =>
         if(oldNISPTree.hasMiner){
@@ -125,22 +123,20 @@ object NISPTreeCache {
             Hex.toHexString(miner.toArray) == Hex.toHexString(Contract.fromAddress(prover.getAddress).hashedPropBytes)
           val nextTotalScore = oldNISPTree.totalScore - minerScore
           val nextMinerSet = oldNISPTree.minerSet -- Set(Hex.toHexString(miner.toArray))
+          val nextHistory = oldNISPTree.history :+ TreeOperation.Remove(Seq(miner.toArray))
           val nispTree = {
             if(removedMiner)
-              oldNISPTree.copy(tree = dictionary, hasMiner = false, totalScore = nextTotalScore, minerSet = nextMinerSet)
+              oldNISPTree.copy(tree = dictionary, hasMiner = false, totalScore = nextTotalScore, minerSet = nextMinerSet,
+                history = nextHistory)
             else
-              oldNISPTree.copy(tree = dictionary, minerSet = nextMinerSet, totalScore = nextTotalScore)
+              oldNISPTree.copy(tree = dictionary, minerSet = nextMinerSet, totalScore = nextTotalScore,
+                history = nextHistory)
           }
 
-          cache.remove(input.getBoxId)
-          cache.set(output.getBoxId, nispTree)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId) :+ output.getBoxId)
+          trees(cache).transition(input.getBoxId, output.getBoxId, nispTree)
           logger.info(s"Transformed NISPTree ${input.getBoxId} in block ${height} to output ${output.getBoxId} after fraud proof application")
         }else{
-          cache.remove(input.getBoxId)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId))
+          trees(cache).remove(input.getBoxId)
           logger.info(s"Removed NISPTree ${input.getBoxId} in block ${height} because local miner was not found after evaluation")
         }
       case None => logger.info(s"Skipped fraud proof application in block ${height}" +
@@ -152,20 +148,15 @@ object NISPTreeCache {
   def cacheNewPayout(ctx:BlockchainContext,input: ErgoTransactionInput,
                         output: ErgoTransactionOutput, cache: SyncCacheApi, height: Int): Unit = {
     val payoutBox = Helpers.parseOutput(ctx, output)
-    val optNISPTree = cache.get[NISPTree](input.getBoxId)
+    val optNISPTree = trees(cache).get(input.getBoxId)
     optNISPTree match {
       case Some(oldNISPTree) =>
         if(oldNISPTree.hasMiner){
           val nispTree   = oldNISPTree.copy(currentPeriod = None, phase = LFSMPhase.PAYOUT)
-          cache.remove(input.getBoxId)
-          cache.set(output.getBoxId, nispTree)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId) :+ output.getBoxId)
+          trees(cache).transition(input.getBoxId, output.getBoxId, nispTree)
           logger.info(s"Transformed NISPTree ${input.getBoxId} in block $height from evaluation contract to ${output.getBoxId} of payout contract")
         }else{
-          cache.remove(input.getBoxId)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId))
+          trees(cache).remove(input.getBoxId)
           logger.info(s"Removed NISPTree ${input.getBoxId} in block $height because local miner was not found after evaluation")
 
         }
@@ -178,7 +169,7 @@ object NISPTreeCache {
   def cacheExistingPayout(ctx:BlockchainContext,input: ErgoTransactionInput, output: Option[ErgoTransactionOutput],
                           cache: SyncCacheApi, prover: ErgoProver, fullBlock: FullBlock, tx: ErgoTransaction): Unit = {
 
-    val optNISPTree = cache.get[NISPTree](input.getBoxId)
+    val optNISPTree = trees(cache).get(input.getBoxId)
     optNISPTree match {
       case Some(oldNISPTree) =>
         if(oldNISPTree.hasMiner){
@@ -199,9 +190,7 @@ object NISPTreeCache {
                 .find(_.getErgoTree == Contract.fromAddress(prover.getAddress).ergoTreeHex)
                 .get
             )
-            cache.remove(input.getBoxId)
-            val treeSet = cache.get[Seq[String]](TREE_SET).get
-            cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId))
+            trees(cache).remove(input.getBoxId)
             val payoutRecord = PayoutRecord(tx.getId, payoutOutput.value, LFSMHelpers.scoreFromPayment(payoutOutput.value, oldNISPTree.totalScore, oldNISPTree.totalReward),
               input.getBoxId, fullBlock.getHeader.getId, oldNISPTree.startHeight, fullBlock.getHeader.getHeight)
             val payoutSet = cache.getOrElseUpdate[Seq[PayoutRecord]](TRACKED_PAYOUTS)(Seq.empty[PayoutRecord])
@@ -212,19 +201,15 @@ object NISPTreeCache {
             require(lookUp.proof.ergoValue.getValue == lookProof, "Lookup proofs must be equal on payout transformation")
             val delete = dictionary.delete(miners.toArray.map(_.toArray):_*)
             require(delete.proof.ergoValue.getValue == delProof, "Removal proofs must be equal on payout transformation")
-            val nispTree = oldNISPTree.copy(tree = dictionary)
+            val nispTree = oldNISPTree.copy(tree = dictionary,
+              history = oldNISPTree.history :+ TreeOperation.Remove(miners.toArray.map(_.toArray).toSeq))
 
-            cache.remove(input.getBoxId)
-            cache.set(output.get.getBoxId, nispTree)
-            val treeSet = cache.get[Seq[String]](TREE_SET).get
-            cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId) :+ output.get.getBoxId)
+            trees(cache).transition(input.getBoxId, output.get.getBoxId, nispTree)
             logger.info(s"Transformed NISPTree ${input.getBoxId} in block ${fullBlock.getHeader.getHeight} to" +
               s" output ${output.get.getBoxId} after payout application")
           }
         }else{
-          cache.remove(input.getBoxId)
-          val treeSet = cache.get[Seq[String]](TREE_SET).get
-          cache.set(TREE_SET, treeSet.filter(_ != input.getBoxId))
+          trees(cache).remove(input.getBoxId)
           logger.warn(s"Removed NISPTree ${input.getBoxId} in block ${fullBlock.getHeader.getHeight} because" +
             s" local miner was not present")
         }
@@ -0,0 +1,156 @@
+package utils
+
+import lfsm.{LFSMHelpers, LFSMPhase, NISPTree}
+
+import java.util
+import scala.collection.JavaConverters
+import scala.collection.mutable
+
+/**
+ * Tracked NISPTrees, indexed by box id, LFSM phase, start height and deadline height. A tree's deadline is the
+ * height at which its current holding or evaluation period ends, payout trees have none.
+ *
+ * Transitions and lookups by box id are O(1), height queries are O(log n + matches). Trees are kept in the order
+ * they were last added or transitioned. Every method is synchronized, and queries return copies that are safe
+ * to use while sync keeps applying blocks.
+ */
+class NISPTreeRegistry {
+  private val byId       = new util.LinkedHashMap[String, NISPTree]()
+  private val byPhase    = mutable.HashMap.empty[LFSMPhase, mutable.LinkedHashSet[String]]
+  private val byStart    = new util.TreeMap[Int, mutable.LinkedHashSet[String]]()
+  private val byDeadline = mutable.HashMap.empty[LFSMPhase, util.TreeMap[Long, mutable.LinkedHashSet[String]]]
+
+  def get(id: String): Option[NISPTree] = synchronized {
+    Option(byId.get(id))
+  }
+
+  def contains(id: String): Boolean = synchronized {
+    byId.containsKey(id)
+  }
+
+  def size: Int = synchronized {
+    byId.size()
+  }
+
+  /**
+   * Tracks a tree under the given box id, replacing any tree already tracked there
+   */
+  def put(id: String, tree: NISPTree): Unit = synchronized {
+    Option(byId.remove(id)).foreach(unindex(id, _))
+    byId.put(id, tree)
+    index(id, tree)
+  }
+
+  /**
+   * Replaces a tree only if it is still tracked, so a tree already transformed by sync is never brought back
+   * @return Whether the tree was replaced
+   */
+  def update(id: String, tree: NISPTree): Boolean = synchronized {
+    if(byId.containsKey(id)) {
+      put(id, tree)
+      true
+    } else {
+      false
+    }
+  }
+
+  /**
+   * Moves a tree from the box it was in to the box that spent it
+   */
+  def transition(from: String, to: String, tree: NISPTree): Unit = synchronized {
+    remove(from)
+    put(to, tree)
+  }
+
+  def remove(id: String): Option[NISPTree] = synchronized {
+    val removed = Option(byId.remove(id))
+    removed.foreach(unindex(id, _))
+    removed
+  }
+
+  def ids: Seq[String] = synchronized {
+    JavaConverters.asScalaIterator(byId.keySet().iterator()).toVector
+  }
+
+  def entries: Seq[(String, NISPTree)] = synchronized {
+    JavaConverters.asScalaIterator(byId.entrySet().iterator()).map(e => e.getKey -> e.getValue).toVector
+  }
+
+  def inPhase(phase: LFSMPhase): Seq[(String, NISPTree)] = synchronized {
+    byPhase.get(phase).map(resolve).getOrElse(Vector.empty)
+  }
+
+  /**
+   * @return Trees whose block was found in [from, until)
+   */
+  def startingBetween(from: Int, until: Int): Seq[(String, NISPTree)] = synchronized {
+    if(from >= until)
+      Vector.empty
+    else
+      JavaConverters.asScalaIterator(byStart.subMap(from, until).values().iterator()).flatMap(resolve).toVector
+  }
+
+  /**
+   * @return Trees in the phase whose period has ended at the given height
+   */
+  def dueBy(phase: LFSMPhase, height: Int): Seq[(String, NISPTree)] = synchronized {
+    byDeadline.get(phase).map {
+      deadlines => JavaConverters.asScalaIterator(deadlines.headMap(height.toLong, true).values().iterator())
+        .flatMap(resolve).toVector
+    }.getOrElse(Vector.empty)
+  }
+
+  /**
+   * @return Trees in the phase whose period is still running at the given height
+   */
+  def openAt(phase: LFSMPhase, height: Int): Seq[(String, NISPTree)] = synchronized {
+    byDeadline.get(phase).map {
+      deadlines => JavaConverters.asScalaIterator(deadlines.tailMap(height.toLong, false).values().iterator())
+        .flatMap(resolve).toVector
+    }.getOrElse(Vector.empty)
+  }
+
+  private def resolve(ids: mutable.LinkedHashSet[String]): Seq[(String, NISPTree)] = {
+    ids.toVector.map(id => id -> byId.get(id))
+  }
+
+  private def deadline(tree: NISPTree): Option[Long] = {
+    tree.phase match {
+      case LFSMPhase.HOLDING => tree.currentPeriod.map(_ + LFSMHelpers.HOLDING_PERIOD)
+      case LFSMPhase.EVAL    => tree.currentPeriod.map(_ + LFSMHelpers.EVAL_PERIOD)
+      case LFSMPhase.PAYOUT  => None
+    }
+  }
+
+  private def index(id: String, tree: NISPTree): Unit = {
+    byPhase.getOrElseUpdate(tree.phase, mutable.LinkedHashSet.empty[String]) += id
+    addTo(byStart, tree.startHeight, id)
+    deadline(tree).foreach {
+      d => addTo(byDeadline.getOrElseUpdate(tree.phase, new util.TreeMap[Long, mutable.LinkedHashSet[String]]()), d, id)
+    }
+  }
+
+  private def unindex(id: String, tree: NISPTree): Unit = {
+    byPhase.get(tree.phase).foreach(_ -= id)
+    removeFrom(byStart, tree.startHeight, id)
+    deadline(tree).foreach(d => byDeadline.get(tree.phase).foreach(removeFrom(_, d, id)))
+  }
+
+  private def addTo[K](index: util.TreeMap[K, mutable.LinkedHashSet[String]], key: K, id: String): Unit = {
+    var ids = index.get(key)
+    if(ids == null) {
+      ids = mutable.LinkedHashSet.empty[String]
+      index.put(key, ids)
+    }
+    ids += id
+  }
+
+  private def removeFrom[K](index: util.TreeMap[K, mutable.LinkedHashSet[String]], key: K, id: String): Unit = {
+    val ids = index.get(key)
+    if(ids != null) {
+      ids -= id
+      if(ids.isEmpty)
+        index.remove(key)
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import org.json.JSONArray;
+import stratum.data.MiningCandidate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mining candidates in the node's /mining/candidate format. The bundled candidates.json has mainnet heights and
+ * targets, point the lithos.bench.candidates system property at a file of candidates recorded from a node to
+ * benchmark against those instead.
+ */
+public final class Candidates {
+
+	public static final String PROPERTY = "lithos.bench.candidates";
+	public static final int BLOCK_VERSION = 2;
+
+	private Candidates() {}
+
+	public static List<MiningCandidate> load() {
+		JSONArray json = new JSONArray(read());
+		List<MiningCandidate> candidates = new ArrayList<>(json.length());
+		for (int i = 0; i < json.length(); i++)
+			candidates.add(MiningCandidate.fromJson(json.getJSONObject(i), BLOCK_VERSION));
+		if (candidates.isEmpty())
+			throw new IllegalStateException("No mining candidates to benchmark with");
+		return candidates;
+	}
+
+	private static String read() {
+		String path = System.getProperty(PROPERTY);
+		try {
+			if (path != null)
+				return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+			try (InputStream in = Candidates.class.getResourceAsStream("/candidates.json")) {
+				if (in == null)
+					throw new IllegalStateException("candidates.json is missing from the classpath");
+				return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
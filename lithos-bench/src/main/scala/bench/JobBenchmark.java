@@ -0,0 +1,107 @@
+package bench;
+
+import com.redbottledesign.bitcoin.rpc.stratum.message.ResponseMessage;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import stratum.BlockTemplate;
+import stratum.data.MiningCandidate;
+import stratum.message.Announcement;
+import stratum.message.AnnouncementMessage;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing a new job: building its mining.notify params and message, and broadcasting it to every miner. Each
+ * invocation starts from a new template, as each new block does, so the cached params and notification are
+ * rebuilt every time.
+ *
+ * ErgoStratumServer connections wrap live sockets, so the broadcasts repeat broadcastMiningJob's per-connection
+ * work over mock connections: serializing the shared message for JStratum connections, and queueing a duplicate
+ * of the encoded notification for selector connections.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobBenchmark {
+
+	@Param({"1", "100", "1000"})
+	public int connections;
+
+	private List<MiningCandidate> candidates;
+	private BigInteger tau;
+	private int next;
+	private List<ArrayDeque<ByteBuffer>> queues;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		candidates = Candidates.load();
+		tau = new BigInteger("4000000000");
+		queues = new ArrayList<>(connections);
+		for (int i = 0; i < connections; i++)
+			queues.add(new ArrayDeque<>());
+	}
+
+	@Benchmark
+	public BlockTemplate newTemplate() {
+		return nextTemplate();
+	}
+
+	@Benchmark
+	public JSONArray jobParams() {
+		return nextTemplate().getJobParams();
+	}
+
+	@Benchmark
+	public String miningJobJson() {
+		return Announcement.miningJob(nextTemplate()).toJson().toString();
+	}
+
+	@Benchmark
+	public void broadcastShared(Blackhole bh) {
+		AnnouncementMessage miningJob = Announcement.miningJob(nextTemplate());
+		for (int i = 0; i < connections; i++)
+			send(miningJob, bh);
+	}
+
+	@Benchmark
+	public void broadcastEncoded() {
+		ByteBuffer notification = nextTemplate().getNotification();
+		for (ArrayDeque<ByteBuffer> queue : queues) {
+			queue.clear();
+			queue.add(notification.duplicate());
+		}
+	}
+
+	/**
+	 * What a JStratum connection's output thread does with each message it is handed
+	 */
+	private static void send(ResponseMessage message, Blackhole bh) {
+		bh.consume((message.toJson().toString() + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private BlockTemplate nextTemplate() {
+		MiningCandidate candidate = candidates.get(next++ % candidates.size());
+		return new BlockTemplate(Integer.toHexString(next), candidate, tau, false, false, 1 << 16);
+	}
+}
@@ -0,0 +1,48 @@
+package bench
+
+import nisp.{NISP, NISPGenerator, NISPView, SuperShare}
+import org.openjdk.jmh.annotations._
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serializing and deserializing NISPs and SuperShares. `shares` covers a valid NISP of 10 shares as well as the
+ * larger per-height NISPs the database used to store whole.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class NISPCodecBenchmark {
+
+  @Param(Array("10", "100"))
+  var shares: Int = _
+
+  private var nisp: NISP = _
+  private var nispBytes: Array[Byte] = _
+  private var shareBytes: Array[Byte] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    nisp = NISPGenerator.nisp(NISPGenerator.START_HEIGHT, shares)
+    nispBytes = nisp.serialize
+    shareBytes = nisp.shares.flatMap(_.serialize).toArray
+  }
+
+  @Benchmark
+  def serialize(): Array[Byte] = nisp.serialize
+
+  @Benchmark
+  def deserialize(): NISP = NISP.deserialize(nispBytes)
+
+  @Benchmark
+  def deserializeMany(): Seq[SuperShare] = SuperShare.deserializeMany(shareBytes)
+
+  /**
+   * Walking the shares of a NISP through its view, without copying or parsing any header
+   */
+  @Benchmark
+  def viewShareCount(): Int = new NISPView(nispBytes).shareCount
+}
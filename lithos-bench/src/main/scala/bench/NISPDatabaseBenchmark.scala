@@ -0,0 +1,159 @@
+package bench
+
+import lfsm.LFSMHelpers
+import nisp.{NISP, NISPDatabase, NISPGenerator, SuperShare}
+import org.openjdk.jmh.annotations._
+
+import java.io.File
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+import java.util.concurrent.TimeUnit
+
+/**
+ * State shared by the database benchmarks: a NISP database in a temporary directory, deleted after the trial. Its
+ * size on disk is printed at the end of every trial, to size disks for a given number of shares per height.
+ */
+@State(Scope.Benchmark)
+class NISPDatabaseState {
+
+  @Param(Array("1", "10", "100"))
+  var sharesPerHeight: Int = _
+
+  var dir: Path = _
+  var db: NISPDatabase = _
+
+  def open(): Unit = {
+    dir = Files.createTempDirectory("lithos-bench-nisp")
+    db = new NISPDatabase(dir.toFile)
+  }
+
+  val top = NISPGenerator.START_HEIGHT + LFSMHelpers.NISP_WINDOW.toInt
+  // Generated once, with distinct headers at every height like a real window
+  lazy val window: Map[Int, Seq[SuperShare]] = {
+    (NISPGenerator.START_HEIGHT to top).map(height => height -> NISPGenerator.shares(height, sharesPerHeight)).toMap
+  }
+
+  /**
+   * Score of the NISP at each height of the window. The last `NISP_SIZE` heights carry twice the score of the others,
+   * so a best NISP query above the lower score walks past every other height of the window.
+   */
+  def score(height: Int): Long = {
+    if(height > top - NISPDatabase.NISP_SIZE) 2 * NISPGenerator.SCORE else NISPGenerator.SCORE
+  }
+
+  /**
+   * Adds every share of the window's heights in [from, until)
+   */
+  def fill(from: Int, until: Int): Unit = {
+    for(height <- from until until; share <- window(height))
+      db.addNISP(height, score(height), share)
+  }
+
+  def close(): Unit = {
+    if(db != null) {
+      val stats = db.stats
+      db.close()
+      println(s"\nNISP database: ${stats.entries} heights, ${stats.shares} shares, ${stats.bytes} bytes of NISPs," +
+        s" ${diskUsage(dir.toFile)} bytes on disk")
+      Files.walk(dir).sorted(Comparator.reverseOrder[Path]()).forEach(p => Files.delete(p))
+      db = null
+    }
+  }
+
+  private def diskUsage(file: File): Long = {
+    if(file.isDirectory) file.listFiles().map(diskUsage).sum else file.length()
+  }
+}
+
+/**
+ * Adding shares one at a time, moving to the next height every `sharesPerHeight` shares as a miner would. Shares
+ * come from the generated window, so each is added at the height of its header. Generating shares is too slow to
+ * do while measuring, so once past the top of the window the same heights are filled again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput, Mode.SampleTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class NISPAddBenchmark {
+  private var added = 0L
+
+  @Setup(Level.Trial)
+  def setup(state: NISPDatabaseState): Unit = {
+    state.open()
+    state.window
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(state: NISPDatabaseState): Unit = state.close()
+
+  @Benchmark
+  def addNISP(state: NISPDatabaseState): Boolean = {
+    val idx = (added % state.sharesPerHeight).toInt
+    val height = NISPGenerator.START_HEIGHT + ((added / state.sharesPerHeight) % state.window.size).toInt
+    added += 1
+    state.db.addNISP(height, state.score(height), state.window(height)(idx))
+  }
+}
+
+/**
+ * Selecting the best NISP at the top of a full `NISP_WINDOW`. Above the lower score, the first heights of the window
+ * already hold enough shares once `sharesPerHeight` is 10 or more. Above the higher score, every height but the last
+ * `NISP_SIZE` fails the score, so the whole window is walked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput, Mode.SampleTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class NISPSelectBenchmark {
+
+  @Setup(Level.Trial)
+  def setup(state: NISPDatabaseState): Unit = {
+    state.open()
+    state.fill(NISPGenerator.START_HEIGHT, state.top + 1)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(state: NISPDatabaseState): Unit = state.close()
+
+  @Benchmark
+  def getBestValidNISP(state: NISPDatabaseState): Option[NISP] = {
+    state.db.getBestValidNISP(state.top, NISPGenerator.SCORE)
+  }
+
+  @Benchmark
+  def getBestValidNISPMixedScores(state: NISPDatabaseState): Option[NISP] = {
+    state.db.getBestValidNISP(state.top, 2 * NISPGenerator.SCORE)
+  }
+}
+
+/**
+ * Removing a full `NISP_WINDOW` in one call, as pruning does. Every invocation starts from a freshly filled window,
+ * the top height is kept so the database never empties.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+class NISPRemoveBenchmark {
+
+  @Setup(Level.Trial)
+  def setup(state: NISPDatabaseState): Unit = {
+    state.open()
+    state.fill(state.top, state.top + 1)
+  }
+
+  @Setup(Level.Invocation)
+  def fill(state: NISPDatabaseState): Unit = state.fill(NISPGenerator.START_HEIGHT, state.top)
+
+  @TearDown(Level.Trial)
+  def tearDown(state: NISPDatabaseState): Unit = state.close()
+
+  @Benchmark
+  def removeUntil(state: NISPDatabaseState): Boolean = state.db.removeUntil(state.top)
+}
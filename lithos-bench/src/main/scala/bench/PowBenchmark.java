@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import stratum.BlockTemplate;
+import stratum.PowKernel;
+import stratum.data.MiningCandidate;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autolykos hit computation for a single nonce, with the kernel used for every share and the reference
+ * implementation used to confirm blocks and super shares.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PowBenchmark {
+
+	private PowKernel kernel;
+	private long nonce;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		MiningCandidate candidate = Candidates.load().get(0);
+		BlockTemplate template = new BlockTemplate("1", candidate, false, 1 << 16);
+		kernel = template.kernel;
+	}
+
+	@Benchmark
+	public long[] hit() {
+		return kernel.hit(nextNonce());
+	}
+
+	@Benchmark
+	public BigInteger referenceHit() {
+		return kernel.referenceHit(nextNonce());
+	}
+
+	private byte[] nextNonce() {
+		long n = ++nonce;
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) n;
+			n >>>= 8;
+		}
+		return bytes;
+	}
+}
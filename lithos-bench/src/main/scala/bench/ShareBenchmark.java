@@ -0,0 +1,99 @@
+package bench;
+
+import lfsm.LFSMHelpers;
+import org.bouncycastle.util.encoders.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import stratum.BlockTemplate;
+import stratum.JobManager;
+import stratum.data.Data;
+import stratum.data.MiningCandidate;
+import stratum.data.Options;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JobManager.processShare end to end, from nonce to share event, the work each ShareVerifier thread does per submit.
+ * At the largest tau about half of the shares are accepted and one in NISP_COEFFICIENT is a super share checked
+ * against the reference hit, at a tau of 1 every share is rejected as low difficulty.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShareBenchmark {
+
+	@Param({"TARGET_MAX_LITHOS", "1"})
+	public String tau;
+
+	private JobManager jobManager;
+	private MiningCandidate candidate;
+	private byte[] extraNonce1;
+	private String jobId;
+	private final AtomicLong nonces = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setup() {
+		candidate = Candidates.load().get(0);
+		BigInteger shareTau = tau.equals("TARGET_MAX_LITHOS") ? LFSMHelpers.TARGET_MAX_LITHOS().bigInteger() : new BigInteger(tau);
+		Options options = new Options(4, 1, 60000, 1000, "http://127.0.0.1:9053/", shareTau, new Data());
+		jobManager = new JobManager(options);
+		extraNonce1 = Hex.decode(jobManager.extraNonceCounter.next());
+	}
+
+	/**
+	 * A fresh template every iteration, so duplicate tracking starts empty like it does for every new block
+	 */
+	@Setup(Level.Iteration)
+	public void newJob() {
+		jobManager.updateCurrentJob(candidate);
+		BlockTemplate job = jobManager.getCurrentJob();
+		jobId = job.jobId;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		jobManager.shutdown();
+	}
+
+	@Benchmark
+	public Object processShare() {
+		try {
+			return jobManager.processShare(jobId, BigInteger.ONE, extraNonce1, nextExtraNonce2(), "", "127.0.0.1", 4444, "bench");
+		} catch (JobManager.ProcessingException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object processShareContended() {
+		return processShare();
+	}
+
+	private byte[] nextExtraNonce2() {
+		long n = nonces.incrementAndGet();
+		byte[] extraNonce2 = new byte[jobManager.extraNonce2Size];
+		for (int i = extraNonce2.length - 1; i >= 0; i--) {
+			extraNonce2[i] = (byte) n;
+			n >>>= 8;
+		}
+		return extraNonce2;
+	}
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import com.redbottledesign.bitcoin.rpc.stratum.MalformedStratumMessageException;
+import org.bouncycastle.util.encoders.Hex;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import stratum.message.Requests;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a mining.submit line the way the selector transport and MinerSession.onSubmit do, before the share is
+ * queued for verification
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubmitBenchmark {
+
+	private static final String LINE =
+			"{\"id\":4,\"method\":\"mining.submit\",\"params\":[\"9fmYtuDtnKDj1yqAdE3f1ZfwUjBbnBRWRhzVYnuJSPNrZ4WDEvS.rig\",\"1f\",\"0000a3c1\",\"\"]}";
+	private static final String EXTRA_NONCE_1 = "0000002a";
+
+	private Requests.Submit submit;
+
+	@Setup(Level.Trial)
+	public void setup() throws MalformedStratumMessageException {
+		submit = new Requests.Submit(new JSONObject(LINE));
+	}
+
+	@Benchmark
+	public void parseAndDecode(Blackhole bh) throws MalformedStratumMessageException {
+		decode(new Requests.Submit(new JSONObject(LINE)), bh);
+	}
+
+	@Benchmark
+	public void decodeParams(Blackhole bh) {
+		decode(submit, bh);
+	}
+
+	private static void decode(Requests.Submit m, Blackhole bh) {
+		bh.consume(m.getParams().get(0));
+		bh.consume(m.getParams().get(1));
+		bh.consume(Hex.decode((String) m.getParams().get(2)));
+		bh.consume(m.getParams().get(3));
+		bh.consume(Hex.decode(EXTRA_NONCE_1));
+	}
+}
@@ -0,0 +1,115 @@
+package evaluation
+
+import evaluation.EvaluationLedger._
+import org.iq80.leveldb.Options
+import scorex.crypto.hash.Blake2b256
+import scorex.db.LDBFactory
+import scorex.utils.Ints
+
+import java.io.File
+import scala.collection.mutable
+import scala.util.Try
+
+/**
+ * LevelDB store of `FraudCheck` verdicts, so a miner's NISP is only checked once per evaluation instead of on every
+ * sync until its tree is marked evaluated. Verdicts survive restarts, and trees sent through evaluation again after
+ * a fraud proof only check miners they have not seen.
+ *
+ * [evalBlock: 4bytes][miner: 32bytes][nispHash: 32bytes] -> [failed condition indices: 1byte each]
+ *
+ * A verdict only depends on the NISP and the block it is evaluated against, so a changed submission gets a new key
+ * rather than reusing an old verdict. Block heights are big-endian, so verdicts of old evaluations are pruned with
+ * one ordered pass from the start of the database.
+ */
+class EvaluationLedger(dir: File) {
+  def this() = this(new File(LEDGER_DIR))
+
+  private val db = LDBFactory.factory.open(dir, new Options())
+  @volatile private var closed = false
+
+  /**
+   * @return Conditions the NISP failed when last checked against `evalBlock`, or None if it was never checked
+   */
+  def verdict(evalBlock: Int, miner: Array[Byte], nispBytes: Array[Byte]): Option[Seq[FraudCheck.Condition]] = {
+    Option(db.get(key(evalBlock, miner, nispBytes))).map(_.toSeq.map(i => FraudCheck.conditions(i)))
+  }
+
+  /**
+   * Stores the verdict of a NISP. Written without fsync, a verdict lost on a crash is simply checked again.
+   */
+  def record(evalBlock: Int, miner: Array[Byte], nispBytes: Array[Byte], failed: Seq[FraudCheck.Condition]): Unit = {
+    if(closed)
+      throw new IllegalStateException("Evaluation ledger is closed")
+    db.put(key(evalBlock, miner, nispBytes), failed.map(c => FraudCheck.conditions.indexOf(c).toByte).toArray)
+  }
+
+  /**
+   * Returns the verdict of every miner, checking and recording only NISPs without one
+   * @param nisps Miners with the NISP stored for them in the evaluated tree
+   * @param check Check to run on NISPs without a verdict, may be called from several threads at once
+   */
+  def verdicts(evalBlock: Int, nisps: Seq[(Array[Byte], Array[Byte])])
+              (check: Array[Byte] => Seq[FraudCheck.Condition]): Seq[(Array[Byte], Seq[FraudCheck.Condition])] = {
+    nisps.par.map{
+      case (miner, nisp) =>
+        miner -> verdict(evalBlock, miner, nisp).getOrElse{
+          val failed = check(nisp)
+          record(evalBlock, miner, nisp, failed)
+          failed
+        }
+    }.seq
+  }
+
+  /**
+   * Removes verdicts of every evaluation against a block below the given height, in a single batch
+   * @return Number of verdicts removed
+   */
+  def prune(height: Int): Int = synchronized {
+    val deletes = mutable.ArrayBuffer.empty[Array[Byte]]
+    val iterator = db.iterator()
+    try {
+      iterator.seekToFirst()
+      var inRange = true
+      while(inRange && iterator.hasNext) {
+        val key = iterator.next().getKey
+        if(Integer.compareUnsigned(Ints.fromByteArray(key.take(BLOCK_SIZE)), height) >= 0)
+          inRange = false
+        else
+          deletes += key
+      }
+    } finally {
+      iterator.close()
+    }
+
+    if(deletes.nonEmpty) {
+      val batch = db.createWriteBatch()
+      try {
+        deletes.foreach(batch.delete)
+        db.write(batch)
+      } finally {
+        batch.close()
+      }
+      Try(db.compactRange(Ints.toByteArray(0), Ints.toByteArray(height)))
+    }
+    deletes.size
+  }
+
+  /**
+   * Closes the underlying LevelDB, writes after this fail
+   */
+  def close(): Unit = synchronized {
+    if(!closed) {
+      closed = true
+      db.close()
+    }
+  }
+}
+
+object EvaluationLedger {
+  final val LEDGER_DIR = ".lithos/evaluations"
+  final val BLOCK_SIZE = 4
+
+  def key(evalBlock: Int, miner: Array[Byte], nispBytes: Array[Byte]): Array[Byte] = {
+    Ints.toByteArray(evalBlock) ++ miner ++ Blake2b256.hash(nispBytes)
+  }
+}
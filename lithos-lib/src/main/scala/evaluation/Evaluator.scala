@@ -1,27 +1,69 @@
 package evaluation
 
-import lfsm.NISPTree
-import lfsm.fraudproofs.FraudProofContracts
+import lfsm.{ContractRegistry, NISPTree}
 import mutations.BoxLoader
 import org.bouncycastle.util.encoders.Hex
 import org.ergoplatform.appkit.{BlockchainContext, ErgoProver, SignedTransaction}
 import org.slf4j.{Logger, LoggerFactory}
 import work.lithos.mutations.{InputUTXO, TxBuilder}
 
+import scala.util.Try
+
 case class Evaluator(ctx: BlockchainContext, prover: ErgoProver, evalInput: InputUTXO, nispTree: NISPTree,
                 miners: Seq[Array[Byte]], fpControl: InputUTXO, loader: BoxLoader) {
   val logger: Logger = LoggerFactory.getLogger("Evaluator")
 
-  def evaluate: Seq[SignedTransaction] = {
-    miners.foreach{
-      m =>
-        val fpContracts = FraudProofContracts.getFraudProofContracts(ctx)
-        logger.info(s"Starting ${fpContracts.size} evaluations for miner ${Hex.toHexString(m)}")
+  private lazy val evalBlock: Long = evalInput.registers(4).getValue.asInstanceOf[Long]
+
+  /**
+   * Checks every miner's NISP off-chain with `FraudCheck`, in parallel. Nothing is built or signed here. Verdicts
+   * stored in the ledger are reused, so only NISPs not seen in an earlier sync are checked.
+   * @return Miners whose NISP fails at least one condition, along with the conditions it fails
+   */
+  def checkUnseen(ledger: EvaluationLedger): Seq[(Array[Byte], Seq[FraudCheck.Condition])] = {
+    failing(ledger.verdicts(evalBlock.toInt, nisps)(FraudCheck.check(_, evalBlock)))
+  }
+
+  /**
+   * @return Every miner with the NISP stored for them in the tree
+   */
+  private def nisps: Seq[(Array[Byte], Array[Byte])] = {
+    val copy = nispTree.tree.copy()
+    copy.prover.generateProof()
+    val lookUp = copy.lookUp(miners:_*).response.map(r => Try(r.get).toOption)
+    miners.zip(lookUp).flatMap{
+      case (m, Some(nisp)) =>
+        Some(m -> nisp)
+      case (m, None) =>
+        logger.warn(s"Could not find NISP for miner ${Hex.toHexString(m)}")
+        None
+    }
+  }
+
+  private def failing(checked: Seq[(Array[Byte], Seq[FraudCheck.Condition])])
+    : Seq[(Array[Byte], Seq[FraudCheck.Condition])] = {
+    val failed = checked.filter(_._2.nonEmpty)
+    logger.info(s"Checked ${miners.size} NISPs, found ${failed.size} miners failing fraud checks")
+    failed
+  }
+
+  /**
+   * Attempts fraud proofs for the given miners, only using the contracts for conditions they failed
+   * @param suspects Miners and failed conditions, as given by `checkUnseen`
+   * @return Transactions proving fraud for the first miner a fraud proof succeeds for, or an empty sequence
+   */
+  def evaluate(suspects: Seq[(Array[Byte], Seq[FraudCheck.Condition])]): Seq[SignedTransaction] = {
+    val contracts = ContractRegistry(ctx)
+    suspects.foreach{
+      case (m, conditions) =>
+        logger.info(s"Starting ${conditions.size} evaluations for miner ${Hex.toHexString(m)}" +
+          s" (${conditions.mkString(", ")})")
 
         var txs = Option.empty[Seq[SignedTransaction]]
         var idx = 0
-        while(txs.isEmpty && idx < fpContracts.size){
-          val fraudProof = FraudProof.genFraudProof(ctx, fpContracts(idx), m, nispTree, evalInput, fpControl)
+        while(txs.isEmpty && idx < conditions.size){
+          val fraudProof = FraudProof.genFraudProof(ctx, conditions(idx).contract(contracts), m, nispTree,
+            evalInput, fpControl)
           txs = fraudProof.attemptFraudProof(ctx, prover, TxBuilder(ctx), loader)
           idx = idx + 1
         }
@@ -30,8 +72,7 @@ case class Evaluator(ctx: BlockchainContext, prover: ErgoProver, evalInput: Inpu
             logger.info(s"Got FP transactions for miner ${Hex.toHexString(m)}")
             return txs
           case None =>
-            logger.info(s"Could not find fraud for miner ${Hex.toHexString(m)}")
-
+            logger.warn(s"Miner ${Hex.toHexString(m)} failed fraud checks, but no fraud proof succeeded")
         }
     }
     logger.info("Got no fraudulent miners")
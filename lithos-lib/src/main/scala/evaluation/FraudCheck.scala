@@ -0,0 +1,116 @@
+package evaluation
+
+import lfsm.ContractRegistry.RollupContractSet
+import lfsm.LFSMHelpers
+import nisp.NISPView
+import nisp.SuperShare.{HEADER_SIZE, N_SIZE}
+import nisp.TransactionProof.{LEAF_SIZE, LEVEL_SIZE}
+import org.ergoplatform.ErgoHeader
+import scorex.crypto.hash.Blake2b256
+import scorex.utils.Ints
+import sigma.pow.Autolykos2PowValidation
+import work.lithos.mutations.Contract
+
+import java.nio.ByteBuffer
+import scala.util.Try
+
+/**
+ * Off-chain versions of the conditions checked by the fraud proof contracts in `resources/fraudproofs`. A NISP is
+ * checked against these before any transaction is built, so fraud proofs are only attempted for the conditions a
+ * miner actually fails.
+ */
+object FraudCheck {
+
+  /**
+   * Condition proven by one of the fraud proof contracts
+   * @param contract Selects the contract proving this condition from the rollup's contracts
+   */
+  sealed abstract class Condition(val contract: RollupContractSet => Contract)
+  case object InvalidSize      extends Condition(_.invalidSize)
+  case object NotInWindow      extends Condition(_.notInWindow)
+  case object NonUniqueHeaders extends Condition(_.nonUniqueHeaders)
+  case object InvalidDiff      extends Condition(_.invalidDiff)
+
+  // Same order as `RollupContractSet.fraudProofs`
+  val conditions: Seq[Condition] = Seq(InvalidSize, NotInWindow, NonUniqueHeaders, InvalidDiff)
+
+  final val NISP_MIN       = 2908
+  final val NISP_MAX       = 40000
+  final val PREHEADER_SIZE = 179
+  // Number of shares the contracts read from a NISP, any after these are never looked at on-chain
+  final val NISP_SHARES    = 10
+  private final val K      = 32
+
+  /**
+   * Checks a miner's NISP against every fraud proof condition
+   * @param nispBytes NISP stored for the miner in the evaluated NISPTree
+   * @param evalBlock Block height held in R8 of the evaluation box
+   * @return Conditions the NISP fails, in the order of `conditions`. If the NISP cannot be read, every condition is
+   *         returned so that the contracts decide instead
+   */
+  def check(nispBytes: Array[Byte], evalBlock: Long): Seq[Condition] = {
+    // Other contracts assume a valid size, so an invalid size is the only condition that can be proven
+    if(nispBytes.length < NISP_MIN || nispBytes.length > NISP_MAX)
+      return Seq(InvalidSize)
+
+    Try{
+      val nisp   = new NISPView(nispBytes)
+      val shares = contractShares(nispBytes)
+
+      val notInWindow = shares.exists{
+        s => s.height < evalBlock - LFSMHelpers.NISP_WINDOW || s.height > evalBlock
+      }
+      val headerIds = shares.map(s => ByteBuffer.wrap(s.header.id))
+      val nonUniqueHeaders = headerIds.distinct.size != headerIds.size
+
+      Seq(
+        NotInWindow      -> notInWindow,
+        NonUniqueHeaders -> nonUniqueHeaders,
+        InvalidDiff      -> failsThreshold(nisp.score, shares)
+      ).collect{ case (condition, true) => condition }
+    }.getOrElse(conditions)
+  }
+
+  /**
+   * @return True if some share's hit is above the super share threshold implied by the NISP's score
+   */
+  private def failsThreshold(score: Long, shares: Seq[ContractShare]): Boolean = {
+    require(score > 0, "NISP score must be positive")
+    val threshold = LFSMHelpers.convertTauOrScore(BigInt(score)) / LFSMHelpers.NISP_COEFFICIENT
+    shares.exists(s => hit(s) > threshold)
+  }
+
+  /**
+   * Recomputes the share's hit the same way as `powHit` in FP_InvalidDiff, using the share's stored N
+   */
+  private def hit(share: ContractShare): BigInt = {
+    val msg = Blake2b256.hash(share.bytes.slice(N_SIZE, N_SIZE + PREHEADER_SIZE))
+    Autolykos2PowValidation.hitForVersion2ForMessageWithChecks(K, msg, share.header.powSolution.n,
+      Ints.toByteArray(share.height), share.storedN)
+  }
+
+  /**
+   * Share as sliced out of a NISP by the contracts, which may differ from the share `SuperShareView` reads
+   */
+  private class ContractShare(val bytes: Array[Byte]) {
+    lazy val storedN: Int = ByteBuffer.wrap(bytes, 0, N_SIZE).getInt
+    lazy val header: ErgoHeader = ErgoHeader.sigmaSerializer.fromBytes(bytes.slice(N_SIZE, N_SIZE + HEADER_SIZE))
+    lazy val height: Int = header.height
+  }
+
+  /**
+   * Slices the first shares out of a NISP the same way `getSuperShares` in the fraud proof contracts does, rather
+   * than with the client's codec. The contracts always read a leaf and read the level count as a signed byte, so for
+   * a share with no levels or with 128 or more, they see different shares than `SuperShareView` and only their
+   * view can be proven on-chain.
+   */
+  private def contractShares(nispBytes: Array[Byte]): Vector[ContractShare] = {
+    val shareBytes = nispBytes.slice(NISPView.SCORE_SIZE, nispBytes.length)
+    (0 until NISP_SHARES).foldLeft((Vector.empty[ContractShare], 0)) {
+      case ((shares, position), _) =>
+        val numLevels: Byte = shareBytes(position + N_SIZE + HEADER_SIZE)
+        val end = position + N_SIZE + HEADER_SIZE + 1 + LEAF_SIZE + numLevels.toInt * LEVEL_SIZE
+        (shares :+ new ContractShare(shareBytes.slice(position, end)), end)
+    }._1
+  }
+}
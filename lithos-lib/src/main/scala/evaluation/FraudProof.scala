@@ -1,13 +1,11 @@
 package evaluation
 
-import lfsm.NISPTree
-import lfsm.fraudproofs.FraudProofContracts
+import lfsm.{ContractRegistry, NISPTree}
 import mutations.BoxLoader
-import nisp.NISP
+import nisp.NISPView
 import org.ergoplatform.ErgoTreePredef
 import org.ergoplatform.appkit.{BlockchainContext, ErgoProver, ErgoValue, Parameters, SignedTransaction}
 import org.slf4j.Logger
-import scorex.utils.Longs
 import sigma.AvlTree
 import sigma.data.CBigInt
 import work.lithos.mutations.{Contract, InputUTXO, Mutator, TxBuilder, TxContext, UTXO}
@@ -69,7 +67,7 @@ object FraudProof {
       val lookUp = copy.lookUp(miner)
       val removal = copy.delete(miner)
       val feeOutput = UTXO(feeProp, Parameters.MinFee)
-      val score = Longs.fromByteArray(lookUp.response.head.get.slice(0, 8))
+      val score = new NISPView(lookUp.response.head.get).score
       val lastMiners = evalOutput.registers(1).getValue.asInstanceOf[Int]
       val lastScore = evalOutput.registers(2).getValue.asInstanceOf[CBigInt].wrappedValue
       val lastPeriod = evalOutput.registers(3)
@@ -100,15 +98,16 @@ object FraudProof {
     def propByteEquality(otrContract: Contract, fpContract: Contract): Boolean = {
       fpContract.hashedPropBytes sameElements otrContract.hashedPropBytes
     }
+    val contracts = ContractRegistry(ctx)
 
     contract match {
-      case invalidDiff if propByteEquality(invalidDiff, FraudProofContracts.mkInvalidDiffContract(ctx)) =>
+      case invalidDiff if propByteEquality(invalidDiff, contracts.invalidDiff) =>
         InvalidDiffProof(contract, miner, nispTree, evalInput, fpControl)
-      case invalidSize if propByteEquality(invalidSize, FraudProofContracts.mkInvalidSizeContract(ctx)) =>
+      case invalidSize if propByteEquality(invalidSize, contracts.invalidSize) =>
         InvalidSizeProof(contract, miner, nispTree, evalInput, fpControl)
-      case nonUniqueHeaders if propByteEquality(nonUniqueHeaders, FraudProofContracts.mkNonUniqueHeadersContract(ctx)) =>
+      case nonUniqueHeaders if propByteEquality(nonUniqueHeaders, contracts.nonUniqueHeaders) =>
         NonUniqueHeadersProof(contract, miner, nispTree, evalInput, fpControl)
-      case notInWindow if propByteEquality(notInWindow, FraudProofContracts.mkNotInWindowContract(ctx)) =>
+      case notInWindow if propByteEquality(notInWindow, contracts.notInWindow) =>
         NotInWindowProof(contract, miner, nispTree, evalInput, fpControl)
       case _ =>
         throw new IllegalArgumentException(s"Cannot find FraudProof for contract ${contract.address(ctx.getNetworkType)}")
@@ -0,0 +1,80 @@
+package lfsm
+
+import lfsm.collateral.CollateralContract
+import lfsm.fraudproofs.FraudProofContracts
+import lfsm.rollup.RollupContracts
+import org.ergoplatform.appkit.{Address, BlockchainContext, NetworkType}
+import org.slf4j.{Logger, LoggerFactory}
+import work.lithos.mutations.Contract
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Compiled Lithos contracts, compiled once per network type and parameter set instead of on every use. The
+ * contracts' propBytes, ergoTreeHex and hashedPropBytes are memoized on `Contract` itself, so everything read
+ * from here is computed once for the life of the process.
+ */
+object ContractRegistry {
+  private val logger: Logger = LoggerFactory.getLogger("ContractRegistry")
+
+  /**
+   * Every contract of the rollup for one network and parameter set
+   * @param fraudProofs Fraud proof contracts in the order `Evaluator` tries them
+   */
+  case class RollupContractSet(networkType: NetworkType, payout: Contract, eval: Contract, holding: Contract,
+                               collateral: Contract, fraudProofs: Seq[Contract]) {
+    val invalidSize: Contract      = fraudProofs(0)
+    val notInWindow: Contract      = fraudProofs(1)
+    val nonUniqueHeaders: Contract = fraudProofs(2)
+    val invalidDiff: Contract      = fraudProofs(3)
+
+    val payoutAddress: Address     = payout.address(networkType)
+    val evalAddress: Address       = eval.address(networkType)
+    val holdingAddress: Address    = holding.address(networkType)
+    val collateralAddress: Address = collateral.address(networkType)
+
+    private val byErgoTreeHex: Map[String, Contract] = (Seq(payout, eval, holding, collateral) ++ fraudProofs)
+      .map(c => c.ergoTreeHex -> c).toMap
+
+    /**
+     * @return The rollup contract with the given ErgoTree, if it is one of ours
+     */
+    def byErgoTree(ergoTreeHex: String): Option[Contract] = byErgoTreeHex.get(ergoTreeHex)
+  }
+
+  private case class Key(networkType: NetworkType, evalPeriod: Long, holdingPeriod: Long)
+
+  private val compiled = new ConcurrentHashMap[Key, RollupContractSet]()
+
+  def apply(ctx: BlockchainContext): RollupContractSet = {
+    get(ctx, LFSMHelpers.EVAL_PERIOD, LFSMHelpers.HOLDING_PERIOD)
+  }
+
+  def get(ctx: BlockchainContext, evalPeriod: Long, holdingPeriod: Long): RollupContractSet = {
+    compiled.computeIfAbsent(Key(ctx.getNetworkType, evalPeriod, holdingPeriod), _ => compile(ctx, evalPeriod, holdingPeriod))
+  }
+
+  /**
+   * Compiles the default contract set ahead of time, so the first block synced or template requested doesn't pay
+   * for it
+   */
+  def warm(ctx: BlockchainContext): RollupContractSet = {
+    val set = apply(ctx)
+    logger.info(s"Compiled Lithos contracts for ${ctx.getNetworkType}, holding contract: ${set.holdingAddress}")
+    set
+  }
+
+  private def compile(ctx: BlockchainContext, evalPeriod: Long, holdingPeriod: Long): RollupContractSet = {
+    val payout     = RollupContracts.mkPayoutContract(ctx)
+    val eval       = RollupContracts.mkEvalContract(ctx, evalPeriod, payout.hashedPropBytes, LFSMHelpers.getFPToken(ctx))
+    val holding    = RollupContracts.mkHoldingContract(ctx, holdingPeriod, eval.hashedPropBytes)
+    val collateral = CollateralContract.mkTestnetCollatContract(ctx, holding.hashedPropBytes)
+    val fraudProofs = Seq(
+      FraudProofContracts.mkInvalidSizeContract(ctx),
+      FraudProofContracts.mkNotInWindowContract(ctx),
+      FraudProofContracts.mkNonUniqueHeadersContract(ctx),
+      FraudProofContracts.mkInvalidDiffContract(ctx)
+    )
+    RollupContractSet(ctx.getNetworkType, payout, eval, holding, collateral, fraudProofs)
+  }
+}
@@ -1,7 +1,12 @@
 package lfsm
 
+import sigma.data.AvlTreeFlags
+import work.lithos.plasma.PlasmaParameters
 import work.lithos.plasma.collections.PlasmaMap
 
+/**
+ * @param history Every operation applied to `tree` since genesis, in order, so the dictionary can be rebuilt
+ */
 case class NISPTree(tree: PlasmaMap[Array[Byte], Array[Byte]],
                     numMiners: Int,
                     totalScore: BigInt,
@@ -12,5 +17,25 @@ case class NISPTree(tree: PlasmaMap[Array[Byte], Array[Byte]],
                     phase: LFSMPhase,
                     minerSet: Set[String] = Set.empty[String],
                     evaluated: Boolean = false,
-                    blockId: String
+                    blockId: String,
+                    history: Vector[TreeOperation] = Vector.empty[TreeOperation]
                    )
+
+/**
+ * Operation applied to a NISPTree's dictionary. The digest of an AVL+ tree depends on the order its keys were
+ * inserted and removed, so an identical dictionary can only be rebuilt by replaying the same operations.
+ */
+sealed trait TreeOperation
+object TreeOperation {
+  case class Insert(key: Array[Byte], value: Array[Byte]) extends TreeOperation
+  case class Remove(keys: Seq[Array[Byte]])               extends TreeOperation
+
+  def replay(history: Seq[TreeOperation]): PlasmaMap[Array[Byte], Array[Byte]] = {
+    val tree = PlasmaMap[Array[Byte], Array[Byte]](AvlTreeFlags.AllOperationsAllowed, PlasmaParameters.default)
+    history.foreach {
+      case Insert(key, value) => tree.insert(key -> value)
+      case Remove(keys)       => tree.delete(keys: _*)
+    }
+    tree
+  }
+}
@@ -1,6 +1,6 @@
 package lfsm.fraudproofs
 
-import lfsm.ScriptGenerator
+import lfsm.{ContractRegistry, ScriptGenerator}
 import org.ergoplatform.appkit.{BlockchainContext, ConstantsBuilder, ErgoId}
 import work.lithos.mutations.Contract
 
@@ -25,12 +25,7 @@ object FraudProofContracts {
 
   // Order is important here, as `Evaluator` uses ordering of this sequence to create fraud proof transactions
   def getFraudProofContracts(ctx: BlockchainContext): Seq[Contract] = {
-    Seq(
-      mkInvalidSizeContract(ctx),
-      mkNotInWindowContract(ctx),
-      mkNonUniqueHeadersContract(ctx),
-      mkInvalidDiffContract(ctx)
-    )
+    ContractRegistry(ctx).fraudProofs
   }
 
 }
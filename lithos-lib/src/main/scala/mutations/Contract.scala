@@ -25,10 +25,11 @@ import scala.util.{Failure, Success, Try}
 case class Contract(ergoTree: ErgoTree, mutators: Seq[Mutator] = Seq.empty[Mutator]) {
   def ergoContract(ctx: BlockchainContext): ErgoContract = ctx.newContract(ergoTree)
 
-  def propBytes: Array[Byte] = ergoTree.bytes
+  // Serialized once per contract, these are compared against every output during sync
+  lazy val propBytes: Array[Byte] = ergoTree.bytes
 
-  def hashedPropBytes: Array[Byte] = Blake2b256.hash(propBytes)
-  def ergoTreeHex: String = Hex.toHexString(propBytes)
+  lazy val hashedPropBytes: Array[Byte] = Blake2b256.hash(propBytes)
+  lazy val ergoTreeHex: String = Hex.toHexString(propBytes)
 
   def mainnetAddress: Address = Address.fromErgoTree(ergoTree, NetworkType.MAINNET)
   def testnetAddress: Address = Address.fromErgoTree(ergoTree, NetworkType.TESTNET)
@@ -35,7 +35,7 @@ case class NISP(score: Long, shares: Seq[SuperShare]) {
 
 object NISP {
   def deserialize(bytes: Array[Byte]): NISP = {
-    NISP(Longs.fromByteArray(bytes.slice(0, 8)), SuperShare.deserializeMany(bytes.slice(8, bytes.length)))
+    new NISPView(bytes).toNISP
   }
 
   def fromErgoValue(ergoValue: ErgoValue[_]): NISP = {
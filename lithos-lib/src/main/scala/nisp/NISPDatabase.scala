@@ -1,20 +1,56 @@
 package nisp
 
 import lfsm.LFSMHelpers
-import nisp.NISPDatabase.{CURRENT_HEIGHT, LAST_HEIGHT, NISP_DIR}
-import org.iq80.leveldb.Options
+import nisp.NISPDatabase._
+import org.iq80.leveldb.{Options, WriteBatch}
 import scorex.crypto.hash.Blake2b256
 import scorex.db.{LDBFactory, LDBKVStore}
-import scorex.utils.Ints
+import scorex.utils.{Ints, Longs}
 
-import java.io.File
+import java.io.{ByteArrayOutputStream, File}
+import scala.collection.mutable
+import scala.util.Try
 
-class NISPDatabase {
-  private val db = LDBFactory.factory.open(new File(NISP_DIR), new Options())
+/**
+ * LevelDB store of NISPs by height. Open one instance per process and share it, LevelDB only allows a single open
+ * handle per directory. Every multi-key update is written as one atomic write batch.
+ *
+ * Each NISP is stored as separate keys, so adding a share never reads or rewrites the shares already stored:
+ *
+ * [SCORE_PREFIX: 1byte][height: 4bytes] -> [score: 8bytes]
+ *
+ * [SHARE_COUNT_PREFIX: 1byte][height: 4bytes] -> [count: 4bytes]
+ *
+ * [SHARE_PREFIX: 1byte][height: 4bytes][sequence: 4bytes] -> [SuperShare]
+ *
+ * Heights and sequence numbers are big-endian, so LevelDB's ordering iterates NISPs by height and shares in the
+ * order they were added. Databases written with one key per height are migrated when opened.
+ *
+ * NISPs best NISP queries can still reach are also kept in a `NISPWindowIndex`, which answers them from memory.
+ */
+class NISPDatabase(dir: File) {
+  def this() = this(new File(NISP_DIR))
+
+  private val db = LDBFactory.factory.open(dir, new Options())
   private val kvstore = new LDBKVStore(db)
+  private var closed = false
+  private val window = new NISPWindowIndex
+  @volatile private var currentStats: NISPStats = open()
 
   def getAll: Seq[(Array[Byte], Array[Byte])] = kvstore.getAll.toSeq
-  def size: Int = getAll.size
+  def size: Int = stats.entries.toInt
+
+  /**
+   * @return Totals for the whole database, maintained on every write instead of scanning
+   */
+  def stats: NISPStats = currentStats
+
+  /**
+   * @return Number of super shares stored for the given height
+   */
+  def shareCount(height: Int): Int = {
+    kvstore.get(shareCountKey(height)).map(Ints.fromByteArray).getOrElse(0)
+  }
   /**
    * Adds SuperShare to create new NISP at given height, or adds the share to an existing NISP
    * @param height Height of the SuperShare
@@ -27,115 +63,368 @@ class NISPDatabase {
   }
 
   /**
-   * Adds SuperShare to create new NISP at given height, or adds the share to an existing NISP
+   * Adds SuperShare to create new NISP at given height, or appends the share to an existing NISP. Only the share
+   * count of the height is read, the share, its count, its stats and both height pointers are written in a single
+   * batch. The pointers are checked against the stats rather than read back.
    * @param height Height of the SuperShare
    * @param score Score associated with the share, only used in new insertions
    * @param share Share to add to database
    * @return Whether all operations returned successfully
    */
-  def addNISP(height: Int, score: Long, share: SuperShare): Boolean = {
+  def addNISP(height: Int, score: Long, share: SuperShare): Boolean = synchronized {
     val hKey = Ints.toByteArray(height)
+    val sequence = shareCount(height)
+    val isNewHeight = sequence == 0
+    val shareBytes = share.serialize
+    val addedBytes = if(isNewHeight) SCORE_SIZE + shareBytes.length else shareBytes.length
+    val nextStats = stats.withNISP(height, 1, addedBytes, isNewHeight)
 
-    def heightsUpdated: Boolean = {
-      val storedLastHeight = lastHeight
-      val lastHeightUpdated = storedLastHeight match {
-        case Some(value) => true
-        case None => updateLastHeight(hKey, storedLastHeight)
-      }
-      val storedCurrHeight = currentHeight
-      val currentHeightUpdated = storedCurrHeight match {
-        case Some(curr) =>
-          if(Ints.fromByteArray(curr) < height) {
-            updateCurrentHeight(hKey, storedCurrHeight)
-          }else{
-            true
-          }
-        case None => updateCurrentHeight(hKey, storedCurrHeight)
-      }
-      currentHeightUpdated && lastHeightUpdated
-    }
-
-    kvstore.get(hKey) match {
-      case Some(bytes) =>
-        val nextNISP = NISP.deserialize(bytes).withSuperShare(share)
-        kvstore.remove(Seq(hKey)).isSuccess && kvstore.insert(hKey, nextNISP.serialize).isSuccess &&
-          heightsUpdated
-      case None =>
-        val nisp = NISP(score, Seq(share))
-        kvstore.insert(hKey, nisp.serialize).isSuccess && heightsUpdated
+    val written = writeWithStats(nextStats) {
+      batch =>
+        if(isNewHeight)
+          batch.put(scoreKey(height), Longs.toByteArray(score))
+        batch.put(shareKey(height, sequence), shareBytes)
+        batch.put(shareCountKey(height), Ints.toByteArray(sequence + 1))
+        if(stats.minHeight.forall(height < _))
+          batch.put(LAST_HEIGHT, hKey)
+        if(stats.maxHeight.forall(_ < height))
+          batch.put(CURRENT_HEIGHT, hKey)
     }
+    if(written)
+      window.add(height, score, share)
+    written
   }
 
   /**
-   * Remove NISPs from the db until the given height (exclusive)
+   * Remove NISPs from the db until the given height (exclusive), in a single batch
    * @param height Threshold height such that all NISPs under this height are removed
    */
-  def removeUntil(height: Int): Boolean = {
-    val currHeight = currentHeight
-    if(currHeight.isEmpty || height > Ints.fromByteArray(currHeight.get)) {
+  def removeUntil(height: Int): Boolean = synchronized {
+    val currHeight = stats.maxHeight
+    if(currHeight.isEmpty || height > currHeight.get) {
       throw new Exception(s"Cannot remove NISPs until height ${height} due to currHeight" +
         s" ${currHeight} being too small or undefined")
     }else{
-      lastHeight match {
+      stats.minHeight match {
         case Some(last) =>
-          var removals = true
-          while(Ints.fromByteArray(lastHeight.get) < height){
-            removals = removals && removeLastNISP
-          }
-          removals
+          removeRange(last, height)
         case None =>
           throw new Exception("Cannot remove NISPs because lastHeight is undefined")
       }
 
     }
   }
-  def removeLastNISP: Boolean = {
-    lastHeight match {
-      case Some(bytes) =>
-        val removal = kvstore.remove(Seq(bytes)).isSuccess
-        val nextHeight = getNextHeight(bytes)
-        nextHeight match {
-          case Some(nextHeightBytes) => updateLastHeight(nextHeightBytes, Some(bytes)) && removal
-          case None =>
-            kvstore.remove(Seq(LAST_HEIGHT)).isSuccess && kvstore.remove(Seq(CURRENT_HEIGHT)).isSuccess && removal
-        }
+  def removeLastNISP: Boolean = synchronized {
+    stats.minHeight match {
+      case Some(height) =>
+        removeRange(height, height + 1)
 
       case None =>
         throw new Exception("Failed to remove last NISP because lastHeight was not defined")
     }
   }
 
+  /**
+   * Closes the underlying LevelDB, writes after this fail
+   */
+  def close(): Unit = synchronized {
+    if(!closed) {
+      closed = true
+      db.close()
+    }
+  }
+
+  /**
+   * Applies the operations added to the batch atomically. Batches are written without fsync, so LevelDB can
+   * group concurrent writes into one log append.
+   */
+  private def writeBatch(ops: WriteBatch => Unit): Boolean = {
+    if(closed)
+      throw new IllegalStateException("NISP database is closed")
+    val batch = db.createWriteBatch()
+    try {
+      ops(batch)
+      Try(db.write(batch)).isSuccess
+    } finally {
+      batch.close()
+    }
+  }
+
+  /**
+   * Writes the batch together with the stats it results in
+   */
+  private def writeWithStats(nextStats: NISPStats)(ops: WriteBatch => Unit): Boolean = {
+    val written = writeBatch {
+      batch =>
+        ops(batch)
+        batch.put(STATS, nextStats.serialize)
+    }
+    if(written)
+      currentStats = nextStats
+    written
+  }
+
+  /**
+   * Removes every NISP below the given height that is no longer needed, in a single batch. Unlike `removeUntil`,
+   * this never fails for heights past the stored ones, so it can be called with any retention floor.
+   * @param height Lowest height to keep
+   * @return Number of heights removed
+   */
+  def prune(height: Int): Int = synchronized {
+    stats.minHeight match {
+      case Some(min) if min < height =>
+        val entries = stats.entries
+        if(removeRange(min, height)) {
+          compact(min, height)
+          (entries - stats.entries).toInt
+        } else {
+          0
+        }
+      case _ => 0
+    }
+  }
+
+  /**
+   * Deletes every key of the heights in [from, until) with one ordered pass over each key range, and moves
+   * `LAST_HEIGHT` to the next height left, clearing both pointers if nothing is left
+   */
+  private def removeRange(from: Int, until: Int): Boolean = {
+    val deletes = mutable.ArrayBuffer.empty[Array[Byte]]
+    var removedHeights = 0
+    var removedShares = 0L
+    var removedBytes = 0L
+    foreachKey(SCORE_PREFIX, HEIGHT_KEY_SIZE, from, until) {
+      (key, _) =>
+        deletes += key
+        deletes += shareCountKey(heightOf(key))
+        removedHeights += 1
+        removedBytes += SCORE_SIZE
+        true
+    }
+    foreachShare(from, until) {
+      (key, value) =>
+        deletes += key
+        removedShares += 1
+        removedBytes += value.length
+    }
+    val next = heightsBetween(until, Int.MaxValue, limit = 1).headOption
+    val nextStats = stats.withoutNISPs(removedHeights, removedShares, removedBytes)
+      .copy(minHeight = next, maxHeight = next.flatMap(_ => stats.maxHeight))
+
+    val written = writeWithStats(nextStats) {
+      batch =>
+        deletes.foreach(batch.delete)
+        next match {
+          case Some(nextHeight) => batch.put(LAST_HEIGHT, Ints.toByteArray(nextHeight))
+          case None =>
+            batch.delete(LAST_HEIGHT)
+            batch.delete(CURRENT_HEIGHT)
+        }
+    }
+    if(written)
+      window.removeRange(from, until)
+    written
+  }
+
+  /**
+   * Asks LevelDB to compact the key ranges of the given heights, so deleted NISPs stop taking disk space and
+   * being skipped over by reads. Only a hint, the pure Java LevelDB does not support it.
+   */
+  private def compact(from: Int, until: Int): Unit = {
+    Seq(SHARE_COUNT_PREFIX, SHARE_PREFIX, SCORE_PREFIX).foreach {
+      prefix => Try(db.compactRange(prefix +: Ints.toByteArray(from), prefix +: Ints.toByteArray(until)))
+    }
+  }
+
+  /**
+   * Calls `f` on every key with the given prefix and length whose height is in [from, until), in key order, until
+   * it returns false.
+   * Iteration stops at the first key past the range instead of scanning the rest of the database.
+   */
+  private def foreachKey(prefix: Byte, keyLength: Int, from: Int, until: Int)
+                        (f: (Array[Byte], Array[Byte]) => Boolean): Unit = {
+    val iterator = db.iterator()
+    try {
+      iterator.seek(prefix +: Ints.toByteArray(from))
+      var inRange = true
+      while(inRange && iterator.hasNext) {
+        val entry = iterator.next()
+        val key = entry.getKey
+        if(key(0) != prefix || Integer.compareUnsigned(heightOf(key), until) >= 0)
+          inRange = false
+        else if(key.length == keyLength)
+          inRange = f(key, entry.getValue)
+      }
+    } finally {
+      iterator.close()
+    }
+  }
+
+  private def foreachShare(from: Int, until: Int)(f: (Array[Byte], Array[Byte]) => Unit): Unit = {
+    foreachKey(SHARE_PREFIX, SHARE_KEY_SIZE, from, until) {
+      (key, value) =>
+        f(key, value)
+        true
+    }
+  }
+
+  /**
+   * @return Heights with a NISP in [from, until), at most `limit` of them
+   */
+  private def heightsBetween(from: Int, until: Int, limit: Int = Int.MaxValue): Seq[Int] = {
+    val heights = mutable.ArrayBuffer.empty[Int]
+    foreachKey(SCORE_PREFIX, HEIGHT_KEY_SIZE, from, until) {
+      (key, _) =>
+        heights += heightOf(key)
+        heights.size < limit
+    }
+    heights
+  }
+
+  /**
+   * @return Score and serialized shares of every NISP in [from, until), by height
+   */
+  private def nispsBetween(from: Int, until: Int): Seq[(Int, Long, Seq[Array[Byte]])] = {
+    val scores = mutable.LinkedHashMap.empty[Int, Long]
+    foreachKey(SCORE_PREFIX, HEIGHT_KEY_SIZE, from, until) {
+      (key, value) =>
+        scores.put(heightOf(key), Longs.fromByteArray(value))
+        true
+    }
+    val shares = mutable.HashMap.empty[Int, mutable.ArrayBuffer[Array[Byte]]]
+    foreachShare(from, until) {
+      (key, value) => shares.getOrElseUpdate(heightOf(key), mutable.ArrayBuffer.empty[Array[Byte]]) += value
+    }
+    scores.toSeq.map {
+      case (height, score) => (height, score, shares.getOrElse(height, Seq.empty[Array[Byte]]))
+    }
+  }
+
+  /**
+   * Migrates NISPs stored whole under their 4 byte height to one key per share if needed, then loads the stats and
+   * the window index. Only heights a best NISP query can still reach are loaded: queries are made for holding boxes,
+   * which are at most `HOLDING_PERIOD` blocks older than the chain tip, and look `NISP_WINDOW` blocks back from them.
+   */
+  private def open(): NISPStats = {
+    val opened = migrateAndLoadStats()
+    opened.maxHeight.foreach {
+      max =>
+        val from = Math.max(0, max - LFSMHelpers.NISP_WINDOW.toInt - LFSMHelpers.HOLDING_PERIOD.toInt)
+        nispsBetween(from, Int.MaxValue).foreach {
+          case (height, score, shares) =>
+            shares.foreach(share => window.add(height, score, SuperShare.deserialize(share)))
+        }
+    }
+    opened
+  }
+
+  private def migrateAndLoadStats(): NISPStats = {
+    val legacy = legacyNISPs
+    if(legacy.nonEmpty) {
+      writeBatch {
+        batch =>
+          legacy.foreach {
+            case (key, value) =>
+              val height = Ints.fromByteArray(key)
+              val nisp = new NISPView(value)
+              var sequence = 0
+              batch.put(scoreKey(height), Longs.toByteArray(nisp.score))
+              nisp.shares.foreach {
+                share =>
+                  batch.put(shareKey(height, sequence), share.toBytes)
+                  sequence += 1
+              }
+              batch.put(shareCountKey(height), Ints.toByteArray(sequence))
+              batch.delete(key)
+          }
+      }
+      rebuildStats()
+    } else {
+      kvstore.get(STATS).map(NISPStats.deserialize).getOrElse(rebuildStats())
+    }
+  }
+
+  /**
+   * @return NISPs still stored whole under their bare 4 byte height. Heights below 2^24 start with a zero byte, so
+   *         these keys sort below every prefixed key and are found without reading the rest of the database
+   */
+  private def legacyNISPs: Seq[(Array[Byte], Array[Byte])] = {
+    val legacy = mutable.ArrayBuffer.empty[(Array[Byte], Array[Byte])]
+    val iterator = db.iterator()
+    try {
+      iterator.seekToFirst()
+      var inRange = true
+      while(inRange && iterator.hasNext) {
+        val entry = iterator.next()
+        val key = entry.getKey
+        if(key(0) != 0)
+          inRange = false
+        else if(key.length == LEGACY_KEY_SIZE)
+          legacy += key -> entry.getValue
+      }
+    } finally {
+      iterator.close()
+    }
+    legacy
+  }
+
+  /**
+   * Computes stats and per-height share counts from the stored shares, and stores them
+   */
+  private def rebuildStats(): NISPStats = {
+    val nisps = nispsBetween(0, Int.MaxValue)
+    val rebuilt = nisps.foldLeft(NISPStats.empty) {
+      case (z, (height, _, shares)) =>
+        z.withNISP(height, shares.size, SCORE_SIZE + shares.map(_.length.toLong).sum, isNewHeight = true)
+    }
+    writeBatch {
+      batch =>
+        nisps.foreach {
+          case (height, _, shares) => batch.put(shareCountKey(height), Ints.toByteArray(shares.size))
+        }
+        batch.put(STATS, rebuilt.serialize)
+    }
+    rebuilt
+  }
+
   /**
    * Gets next height with nisp starting from given height
    */
   def getNextHeight(start: Array[Byte]): Option[Array[Byte]] = {
-    currentHeight match {
+    stats.maxHeight match {
       case Some(curr) =>
-        val hVal = Ints.fromByteArray(start)
-        var heightCounter = hVal + 1
-        var nextNISP = kvstore.get(Ints.toByteArray(heightCounter))
-        while (nextNISP.isEmpty && heightCounter <= Ints.fromByteArray(curr)) {
-          heightCounter = heightCounter + 1
-          nextNISP = kvstore.get(Ints.toByteArray(heightCounter))
-        }
-        if(nextNISP.isEmpty)
-          return None
-        Some(Ints.toByteArray(heightCounter))
+        val from = Ints.fromByteArray(start) + 1
+        heightsBetween(from, curr + 1, limit = 1).headOption.map(Ints.toByteArray)
       case None =>
         throw new Exception("Can't get next height when current height is undefined. Is this database empty?")
     }
   }
 
+  /**
+   * @return Lowest height with a NISP, answered from the stats, which are written in the same batch as `LAST_HEIGHT`
+   */
   def lastHeight: Option[Array[Byte]] = {
-    kvstore.get(LAST_HEIGHT)
+    stats.minHeight.map(Ints.toByteArray)
   }
 
+  /**
+   * @return Highest height with a NISP, answered from the stats like `lastHeight`
+   */
   def currentHeight: Option[Array[Byte]] = {
-    kvstore.get(CURRENT_HEIGHT)
+    stats.maxHeight.map(Ints.toByteArray)
   }
 
+  /**
+   * @return The NISP at the given height in its serialized form, assembled from its score and shares
+   */
   def getNISPBytes(height: Int): Option[Array[Byte]] = {
-    kvstore.get(Ints.toByteArray(height))
+    kvstore.get(scoreKey(height)).map {
+      score =>
+        val bytes = new ByteArrayOutputStream()
+        bytes.write(score)
+        foreachShare(height, height + 1)((_, share) => bytes.write(share))
+        bytes.toByteArray
+    }
   }
 
   def getNISP(height: Int): Option[NISP] = {
@@ -144,59 +433,17 @@ class NISPDatabase {
 
   /**
    * Gets the best valid NISP before a given height and above a given score. If a NISP with 10 super-shares cannot be
-   * made, `None` is returned.
+   * made, `None` is returned. Answered from the window index, without reading from LevelDB.
    * @param height Height that all super-shares must be under. Super-shares must be above (height - NISP_PERIOD)
    * @param score Score that all super-shares must be above.
    * @return `Some(NISP)` with 10 super-shares below the given height and above the given score, or `None`
    */
   def getBestValidNISP(height: Int, score: Long): Option[NISP] = {
-    require(lastHeight.isDefined, "Cannot search for NISPs when lastHeight is undefined")
+    val last = stats.minHeight
+    require(last.isDefined, "Cannot search for NISPs when lastHeight is undefined")
     val minHeight = height - LFSMHelpers.NISP_WINDOW.toInt
-    val start = Math.max(minHeight, lastHeight.map(Ints.fromByteArray).get)
-    val nisps = for(i <- start to height) yield getNISP(i)
-    val validNISPs = nisps.filter(n => n.isDefined && n.get.score >= score).map(_.get)
-    val bestNISP = validNISPs.foldLeft(Option.empty[NISP]){
-      (z: Option[NISP], x: NISP) =>
-        if(z.isEmpty) {
-          Some(x.copy(shares = makeUnique(x.shares)))
-        }else if(z.get.shares.size >= 10){
-          z
-        }else{
-          val uniqueShares = makeUnique(x.shares).filter(s => !z.get.shares.exists(p => p.headerBytes sameElements s.headerBytes))
-          Some(z.get.copy(score = score, shares = z.get.shares ++ uniqueShares))
-        }
-    }
-    if(bestNISP.isEmpty || bestNISP.get.shares.size < 10){
-      None
-    }else{
-      Some(bestNISP.get.copy(shares = bestNISP.get.shares.take(10)))
-    }
-  }
-  def makeUnique(shares: Seq[SuperShare]): Seq[SuperShare] = {
-    shares.foldLeft(Seq.empty[SuperShare]){
-      (z, s) =>
-        if(z.exists(sh => sh.headerBytes sameElements s.headerBytes))
-          z
-        else
-          z ++ Seq(s)
-    }
-  }
-  def updateLastHeight(newLastHeight: Array[Byte], storedLastHeight: Option[Array[Byte]]): Boolean = {
-    storedLastHeight match {
-      case Some(h) =>
-        kvstore.remove(Seq(LAST_HEIGHT)).isSuccess && kvstore.insert(LAST_HEIGHT, newLastHeight).isSuccess
-      case None =>
-        kvstore.insert(LAST_HEIGHT, newLastHeight).isSuccess
-    }
-  }
-
-  def updateCurrentHeight(newCurrHeight: Array[Byte], storedCurrHeight: Option[Array[Byte]]): Boolean = {
-    storedCurrHeight match {
-      case Some(h) =>
-          kvstore.remove(Seq(CURRENT_HEIGHT)).isSuccess && kvstore.insert(CURRENT_HEIGHT, newCurrHeight).isSuccess
-      case None =>
-        kvstore.insert(CURRENT_HEIGHT, newCurrHeight).isSuccess
-    }
+    val start = Math.max(minHeight, last.get)
+    window.best(start, height, score, NISP_SIZE)
   }
 
 }
@@ -204,4 +451,23 @@ object NISPDatabase {
   final val NISP_DIR = ".lithos/nisp"
   final val LAST_HEIGHT = Blake2b256.hash("LAST_HEIGHT")
   final val CURRENT_HEIGHT = Blake2b256.hash("CURRENT_HEIGHT")
+  final val STATS = Blake2b256.hash("STATS")
+  final val SHARE_COUNT_PREFIX: Byte = 1
+  final val SHARE_PREFIX: Byte = 2
+  final val SCORE_PREFIX: Byte = 3
+  // NISPs were keyed by their bare height before shares were stored separately
+  final val LEGACY_KEY_SIZE = 4
+  final val HEIGHT_KEY_SIZE = 5
+  final val SHARE_KEY_SIZE = 9
+  final val SCORE_SIZE = 8
+  // Number of super shares in a valid NISP
+  final val NISP_SIZE = 10
+
+  def shareCountKey(height: Int): Array[Byte] = SHARE_COUNT_PREFIX +: Ints.toByteArray(height)
+  def scoreKey(height: Int): Array[Byte] = SCORE_PREFIX +: Ints.toByteArray(height)
+  def shareKey(height: Int, sequence: Int): Array[Byte] = {
+    (SHARE_PREFIX +: Ints.toByteArray(height)) ++ Ints.toByteArray(sequence)
+  }
+
+  private def heightOf(key: Array[Byte]): Int = Ints.fromByteArray(key.slice(1, HEIGHT_KEY_SIZE))
 }
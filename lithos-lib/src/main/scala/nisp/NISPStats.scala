@@ -0,0 +1,51 @@
+package nisp
+
+import scorex.utils.{Ints, Longs}
+
+/**
+ * Running totals of the NISP database, updated in the same write batch as the NISPs they describe
+ *
+ * Serialized like so:
+ *
+ * [entries: 8bytes][shares: 8bytes][bytes: 8bytes][minHeight: 4bytes][maxHeight: 4bytes]
+ *
+ * Where both heights are -1 while the database is empty
+ * @param entries Number of heights with a NISP
+ * @param shares Number of super shares across all NISPs
+ * @param bytes Total size of the stored NISPs
+ */
+case class NISPStats(entries: Long, shares: Long, bytes: Long, minHeight: Option[Int], maxHeight: Option[Int]) {
+  def serialize: Array[Byte] = {
+    Longs.toByteArray(entries) ++ Longs.toByteArray(shares) ++ Longs.toByteArray(bytes) ++
+      Ints.toByteArray(minHeight.getOrElse(-1)) ++ Ints.toByteArray(maxHeight.getOrElse(-1))
+  }
+
+  def withNISP(height: Int, addedShares: Int, addedBytes: Long, isNewHeight: Boolean): NISPStats = {
+    NISPStats(
+      if(isNewHeight) entries + 1 else entries,
+      shares + addedShares,
+      bytes + addedBytes,
+      Some(minHeight.fold(height)(Math.min(_, height))),
+      Some(maxHeight.fold(height)(Math.max(_, height)))
+    )
+  }
+
+  def withoutNISPs(removedEntries: Long, removedShares: Long, removedBytes: Long): NISPStats = {
+    copy(entries = entries - removedEntries, shares = shares - removedShares, bytes = bytes - removedBytes)
+  }
+}
+
+object NISPStats {
+  val empty: NISPStats = NISPStats(0, 0, 0, None, None)
+
+  def deserialize(bytes: Array[Byte]): NISPStats = {
+    def height(offset: Int): Option[Int] = Some(Ints.fromByteArray(bytes.slice(offset, offset + 4))).filter(_ >= 0)
+    NISPStats(
+      Longs.fromByteArray(bytes.slice(0, 8)),
+      Longs.fromByteArray(bytes.slice(8, 16)),
+      Longs.fromByteArray(bytes.slice(16, 24)),
+      height(24),
+      height(28)
+    )
+  }
+}
@@ -0,0 +1,32 @@
+package nisp
+
+import java.nio.ByteBuffer
+
+/**
+ * Read-only view of a serialized NISP, for reading its score or walking its shares without deserializing every
+ * share first.
+ * @param offset Offset of the NISP in the array
+ * @param length Length of the NISP in bytes
+ */
+class NISPView(bytes: Array[Byte], offset: Int, length: Int) {
+  def this(bytes: Array[Byte]) = this(bytes, 0, bytes.length)
+
+  require(length >= NISPView.SCORE_SIZE && bytes.length >= offset + length, "NISP is truncated")
+
+  def score: Long = ByteBuffer.wrap(bytes).getLong(offset)
+
+  def size: Int = length
+
+  def shares: Iterator[SuperShareView] = SuperShareView.all(bytes, offset + NISPView.SCORE_SIZE, offset + length)
+
+  /**
+   * Counts shares from their sizes alone, without parsing any header
+   */
+  def shareCount: Int = shares.size
+
+  def toNISP: NISP = NISP(score, shares.map(SuperShare.fromView).toVector)
+}
+
+object NISPView {
+  final val SCORE_SIZE = 8
+}
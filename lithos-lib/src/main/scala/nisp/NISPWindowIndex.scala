@@ -0,0 +1,83 @@
+package nisp
+
+import java.nio.ByteBuffer
+import java.util
+import scala.collection.mutable
+
+/**
+ * In-memory copy of the NISPs stored in `NISPDatabase`, updated with every share added and height removed, so the
+ * best NISP for a holding submission is found without reading or deserializing anything from LevelDB.
+ *
+ * Shares of each height are kept in the order they were added, with repeated headers dropped on insert. Queries walk
+ * heights in order and stop as soon as enough unique shares are found, so their cost depends on the number of
+ * shares requested rather than the size of the window.
+ */
+class NISPWindowIndex {
+  private class Entry(val score: Long) {
+    val shares: mutable.ArrayBuffer[SuperShare] = mutable.ArrayBuffer.empty[SuperShare]
+    val headers: mutable.HashSet[ByteBuffer] = mutable.HashSet.empty[ByteBuffer]
+  }
+
+  private val byHeight = new util.TreeMap[Int, Entry]()
+
+  def heights: Int = synchronized {
+    byHeight.size()
+  }
+
+  /**
+   * Adds the share to the NISP at the given height
+   * @param score Score of the NISP, only used if it is the first share at this height
+   */
+  def add(height: Int, score: Long, share: SuperShare): Unit = synchronized {
+    var entry = byHeight.get(height)
+    if(entry == null) {
+      entry = new Entry(score)
+      byHeight.put(height, entry)
+    }
+    if(entry.headers.add(ByteBuffer.wrap(share.headerBytes)))
+      entry.shares += share
+  }
+
+  /**
+   * Drops every NISP in [from, until)
+   */
+  def removeRange(from: Int, until: Int): Unit = synchronized {
+    if(from < until)
+      byHeight.subMap(from, until).clear()
+  }
+
+  /**
+   * Collects the first `count` unique shares from NISPs in [from, to] with a score of at least `score`, in height
+   * order. The result keeps the score of its NISP if a single one was enough, and takes `score` otherwise.
+   * @return NISP with exactly `count` shares, or None if there are not enough unique shares
+   */
+  def best(from: Int, to: Int, score: Long, count: Int): Option[NISP] = synchronized {
+    if(from > to)
+      return None
+
+    val picked = mutable.ArrayBuffer.empty[SuperShare]
+    val seen = mutable.HashSet.empty[ByteBuffer]
+    var firstScore = score
+    var nispsUsed = 0
+    val entries = byHeight.subMap(from, true, to, true).values().iterator()
+    while(picked.size < count && entries.hasNext) {
+      val entry = entries.next()
+      if(entry.score >= score) {
+        if(nispsUsed == 0)
+          firstScore = entry.score
+        nispsUsed += 1
+        val shares = entry.shares.iterator
+        while(picked.size < count && shares.hasNext) {
+          val share = shares.next()
+          if(seen.add(ByteBuffer.wrap(share.headerBytes)))
+            picked += share
+        }
+      }
+    }
+
+    if(picked.size < count)
+      None
+    else
+      Some(NISP(if(nispsUsed == 1) firstScore else score, picked.toVector))
+  }
+}
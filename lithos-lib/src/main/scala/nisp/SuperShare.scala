@@ -13,7 +13,7 @@ case class SuperShare(headerBytes: Array[Byte], txProof: Option[TransactionProof
     nBytes ++ headerBytes ++ Seq((if(txProof.isDefined) txProof.get.levels.size else 0).toByte) ++ txProof.map(_.serialize).toSeq.flatten
   }
 
-  def size: Int = serialize.length
+  def size: Int = SuperShareView.size(txProof.map(_.levels.size).getOrElse(0))
 
   override def toString: String = {
     s"SuperShare(${Hex.toHexString(nBytes)}, ${Hex.toHexString(headerBytes)},\n " +
@@ -21,16 +21,12 @@ case class SuperShare(headerBytes: Array[Byte], txProof: Option[TransactionProof
       s"${txProof})"
   }
 
-  def getHeader: ErgoHeader = {
-    ErgoHeader.sigmaSerializer.fromBytes(headerBytes)
-  }
+  // Parsed once per share, the header is only read for its height and N
+  lazy val getHeader: ErgoHeader = ErgoHeader.sigmaSerializer.fromBytes(headerBytes)
 
-  def getHeight: Int =
-    getHeader.height
+  lazy val getHeight: Int = getHeader.height
 
-  def getN: Int = {
-    Autolykos2PowValidation.calcN(getHeight)
-  }
+  lazy val getN: Int = Autolykos2PowValidation.calcN(getHeight)
 
   lazy val nBytes: Array[Byte] = Ints.toByteArray(getN)
 
@@ -44,24 +40,16 @@ object SuperShare {
    * @return First SuperShare found within the given bytes
    */
   def deserialize(bytes: Array[Byte]): SuperShare = {
-    val nBytes = bytes.slice(0, N_SIZE)
-    val header = bytes.slice(N_SIZE, N_SIZE + HEADER_SIZE)
-    val proof = {
-      if(bytes(N_SIZE + HEADER_SIZE) != 0.toByte) {
-        Some(
-          TransactionProof.deserialize(bytes.slice(
-            N_SIZE + HEADER_SIZE + 1, N_SIZE + HEADER_SIZE + 1 +
-              TransactionProof.LEAF_SIZE + (bytes(N_SIZE + HEADER_SIZE).toInt * TransactionProof.LEVEL_SIZE)
-          ), bytes(N_SIZE + HEADER_SIZE).toInt)
-        )
-      }else{
-        None
-      }
-    }
-    require(Ints.fromByteArray(nBytes) == Autolykos2PowValidation
-      .calcN(ErgoHeader.sigmaSerializer.fromBytes(header).height),
-      "Stored N value and calculated N value must be equal")
-    SuperShare(header, proof)
+    fromView(new SuperShareView(bytes, 0))
+  }
+
+  /**
+   * Copies the SuperShare out of the view, checking its stored N against the one calculated from its header
+   */
+  def fromView(view: SuperShareView): SuperShare = {
+    val share = SuperShare(view.headerBytes, view.txProof.map(_.toTransactionProof))
+    require(view.storedN == share.getN, "Stored N value and calculated N value must be equal")
+    share
   }
 
   def fromCandidate(nonce: Array[Byte], candidate: MiningCandidate): SuperShare = {
@@ -90,15 +78,6 @@ object SuperShare {
    * @return Sequence of SuperShares read from bytes
    */
   def deserializeMany(bytes: Array[Byte]): Seq[SuperShare] = {
-    var shares = Seq(deserialize(bytes))
-    var counter = shares.head.size
-
-    while(counter != bytes.length){
-      require(counter < bytes.length, "SuperShares should be evenly read from given bytes")
-      val nextShare = deserialize(bytes.slice(counter, bytes.length))
-      shares = shares ++ Seq(nextShare)
-      counter = counter + nextShare.size
-    }
-    shares
+    SuperShareView.all(bytes, 0, bytes.length).map(fromView).toVector
   }
 }
@@ -0,0 +1,75 @@
+package nisp
+
+import nisp.SuperShare.{HEADER_SIZE, N_SIZE}
+import org.ergoplatform.ErgoHeader
+import sigma.pow.Autolykos2PowValidation
+
+import java.nio.ByteBuffer
+import java.util
+
+/**
+ * Read-only view of a serialized SuperShare at an offset of a larger array, such as a NISP. Fields are read in
+ * place, and the header is only parsed the first time its height or N is needed.
+ */
+class SuperShareView(bytes: Array[Byte], offset: Int) {
+  require(bytes.length > offset + N_SIZE + HEADER_SIZE, "SuperShare is truncated")
+
+  private val headerOffset = offset + N_SIZE
+
+  /**
+   * N value stored in front of the header, which must match the N calculated from the header's height
+   */
+  def storedN: Int = ByteBuffer.wrap(bytes).getInt(offset)
+
+  def numLevels: Int = bytes(headerOffset + HEADER_SIZE) & 0xff
+
+  def size: Int = SuperShareView.size(numLevels)
+
+  def headerBytes: Array[Byte] = util.Arrays.copyOfRange(bytes, headerOffset, headerOffset + HEADER_SIZE)
+
+  /**
+   * @return The header bytes without copying, for comparing and hashing headers
+   */
+  def headerKey: ByteBuffer = ByteBuffer.wrap(bytes, headerOffset, HEADER_SIZE).slice()
+
+  lazy val header: ErgoHeader = ErgoHeader.sigmaSerializer.fromBytes(headerBytes)
+  lazy val height: Int = header.height
+  lazy val n: Int = Autolykos2PowValidation.calcN(height)
+
+  def txProof: Option[TransactionProofView] = {
+    if(numLevels == 0)
+      None
+    else
+      Some(new TransactionProofView(bytes, headerOffset + HEADER_SIZE + 1, numLevels))
+  }
+
+  /**
+   * @return The serialized share, copied out of the underlying array
+   */
+  def toBytes: Array[Byte] = util.Arrays.copyOfRange(bytes, offset, offset + size)
+
+  def toSuperShare: SuperShare = SuperShare(headerBytes, txProof.map(_.toTransactionProof))
+}
+
+object SuperShareView {
+  def size(numLevels: Int): Int = {
+    N_SIZE + HEADER_SIZE + 1 + (if(numLevels == 0) 0 else TransactionProofView.size(numLevels))
+  }
+
+  /**
+   * Walks the SuperShares serialized back to back in [from, until) of the array, without copying
+   */
+  def all(bytes: Array[Byte], from: Int, until: Int): Iterator[SuperShareView] = new Iterator[SuperShareView] {
+    private var position = from
+
+    override def hasNext: Boolean = position != until
+
+    override def next(): SuperShareView = {
+      require(position < until, "SuperShares should be evenly read from given bytes")
+      val share = new SuperShareView(bytes, position)
+      position = position + share.size
+      require(position <= until, "SuperShares should be evenly read from given bytes")
+      share
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package nisp
+
+import nisp.TransactionProof.{LEAF_SIZE, LEVEL_SIZE}
+
+import java.util
+
+/**
+ * Read-only view of a serialized TransactionProof at an offset of a larger array. Nothing is copied until the leaf
+ * or a level is asked for.
+ * @param numLevels Number of merkle levels, stored before the proof in its SuperShare
+ */
+class TransactionProofView(bytes: Array[Byte], offset: Int, val numLevels: Int) {
+  require(numLevels >= 1, "Number of levels for transaction proof must be greater than or equal to 1")
+  require(bytes.length >= offset + TransactionProofView.size(numLevels), "Transaction proof is truncated")
+
+  def size: Int = TransactionProofView.size(numLevels)
+
+  def leaf: Array[Byte] = util.Arrays.copyOfRange(bytes, offset, offset + LEAF_SIZE)
+
+  def level(idx: Int): Array[Byte] = {
+    require(idx >= 0 && idx < numLevels, s"Level ${idx} is out of bounds for ${numLevels} levels")
+    val from = offset + LEAF_SIZE + idx * LEVEL_SIZE
+    util.Arrays.copyOfRange(bytes, from, from + LEVEL_SIZE)
+  }
+
+  def toTransactionProof: TransactionProof = TransactionProof(leaf, (0 until numLevels).map(level))
+}
+
+object TransactionProofView {
+  def size(numLevels: Int): Int = LEAF_SIZE + numLevels * LEVEL_SIZE
+}
@@ -1,12 +1,17 @@
 package stratum;
 
 
+import lfsm.LFSMHelpers;
+import scala.math.BigInt;
 import stratum.data.MiningCandidate;
 import org.bouncycastle.util.encoders.Hex;
 import org.json.JSONArray;
+import stratum.message.Announcement;
 
 import java.math.BigInteger;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static stratum.Utils.jsonArray;
 
@@ -14,55 +19,28 @@ public class BlockTemplate {
 
 	private static final BigInteger DIFF_1 = new BigInteger("00000000ffff0000000000000000000000000000000000000000000000000000", 16);
 
-	private static class Submission {
+	// Smallest duplicate filter per template, enough for a burst of shares on a short-lived job
+	private static final int MIN_TRACKED_SHARES = 1024;
+	// Largest vardiff shift a share target can be announced for
+	public static final int MAX_SHIFT = 63;
 
-		public Submission(byte[] extraNonce1, byte[] extraNonce2, String nTime, byte[] nonce) {
-			this.extraNonce1 = extraNonce1;
-			this.extraNonce2 = extraNonce2;
-			this.nTime = nTime;
-			this.nonce = nonce;
-		}
-
-		public byte[] extraNonce1;
-		public byte[] extraNonce2;
-		public String nTime;
-		public byte[] nonce;
-
-
-
-		@Override
-		public boolean equals(Object o) {
-			if (this == o) return true;
-			if (!(o instanceof Submission)) return false;
-			else {
-				Submission that = (Submission) o;
-				return Arrays.equals(extraNonce1, that.extraNonce1) && Arrays.equals(extraNonce2, that.extraNonce2) && nTime.equals(that.nTime) && Arrays.equals(nonce, that.nonce);
-			}
-		}
-
-		@Override
-		public int hashCode() {
-			int result = Objects.hash(nTime);
-			result = 31 * result + Arrays.hashCode(extraNonce1);
-			result = 31 * result + Arrays.hashCode(extraNonce2);
-			result = 31 * result + Arrays.hashCode(nonce);
-			return result;
-		}
-	}
+	private final NonceFilter submittedNonces;
 
-	private final Set<Object> submissions = new HashSet<>();
-
-	public BlockTemplate(String jobId, MiningCandidate miningCandidate, boolean usedCollateral) {
+	public BlockTemplate(String jobId, MiningCandidate miningCandidate, boolean usedCollateral, int maxTrackedShares) {
 		this.jobId = jobId;
 		this.candidate = miningCandidate;
 		this.target = miningCandidate.b;
 		this.tau = BigInteger.valueOf(0);
 		this.msg = miningCandidate.msg;
         this.usedCollateral = usedCollateral;
+		this.realTau = BigInteger.ZERO;
+		this.superShareThreshold = BigInteger.ZERO;
+		this.kernel = new PowKernel(msg, candidate.height, target, tau, superShareThreshold);
+		this.submittedNonces = new NonceFilter(trackedShares(tau, target, maxTrackedShares));
 	}
 
 	public BlockTemplate(String jobId, MiningCandidate miningCandidate, BigInteger tau,
-                         boolean usedCollateral, boolean reducedShareMessages) {
+                         boolean usedCollateral, boolean reducedShareMessages, int maxTrackedShares) {
 		this.jobId = jobId;
 		this.candidate = miningCandidate;
 		this.target = miningCandidate.b;
@@ -70,6 +48,11 @@ public class BlockTemplate {
 		this.msg = miningCandidate.msg;
         this.usedCollateral = usedCollateral;
         this.reducedShareMessages = reducedShareMessages;
+		// Round trip through the score so the threshold matches what fraud proofs compute on chain
+		this.realTau = LFSMHelpers.convertTauOrScore(LFSMHelpers.convertTauOrScore(BigInt.apply(tau))).bigInteger();
+		this.superShareThreshold = realTau.divide(BigInteger.valueOf(LFSMHelpers.NISP_COEFFICIENT()));
+		this.kernel = new PowKernel(msg, candidate.height, target, tau, superShareThreshold);
+		this.submittedNonces = new NonceFilter(trackedShares(tau, target, maxTrackedShares));
 	}
 
 	public MiningCandidate candidate;
@@ -79,30 +62,80 @@ public class BlockTemplate {
 	public byte[] msg;
     public boolean usedCollateral;
     public boolean reducedShareMessages;
+	public final BigInteger realTau;
+	public final BigInteger superShareThreshold;
+	public final PowKernel kernel;
 
 	public byte[] serializeCoinbase(byte[] extraNonce1, byte[] extraNonce2) {
 		return Utils.concat(msg, extraNonce1, extraNonce2);
 	}
 
-	public boolean registerSubmit(byte[] extraNonce1, byte[] extraNonce2, String nTime, byte[] nonce) {
-		return submissions.add(new Submission(extraNonce1, extraNonce2, nTime, nonce));
+	/**
+	 * @return false if the nonce was already submitted for this job
+	 */
+	public boolean registerSubmit(byte[] nonce) {
+		return submittedNonces.add(nonce);
+	}
+
+	/**
+	 * About tau / b shares are found for every block, so a job is retired long before the pool submits more than
+	 * twice that many. Sized from that ratio within the configured budget.
+	 */
+	private static int trackedShares(BigInteger tau, BigInteger target, int maxTrackedShares) {
+		if (target == null || target.signum() <= 0)
+			return maxTrackedShares;
+		BigInteger expected = tau.divide(target).shiftLeft(1);
+		if (expected.compareTo(BigInteger.valueOf(maxTrackedShares)) >= 0)
+			return maxTrackedShares;
+		return Math.min(maxTrackedShares, Math.max(MIN_TRACKED_SHARES, expected.intValue()));
 	}
 
-	private JSONArray jobParams;
+	// Indexed by vardiff shift, filled in as connections at each difficulty ask for the job
+	private final AtomicReferenceArray<JSONArray> jobParams = new AtomicReferenceArray<>(MAX_SHIFT + 1);
+	private final AtomicReferenceArray<ByteBuffer> notifications = new AtomicReferenceArray<>(MAX_SHIFT + 1);
 
 	public JSONArray getJobParams() {
+		return getJobParams(0);
+	}
 
-		if (jobParams != null) return jobParams;
-		return jobParams = jsonArray(
+	/**
+	 * Gets the mining.notify params for a connection at the given vardiff shift. Miners read their share target
+	 * from b, so it is tau / 2^shift, the same target {@link ShareVerifier} checks the connection's shares against.
+	 */
+	public JSONArray getJobParams(int shift) {
+		JSONArray params = jobParams.get(shift);
+		if (params != null) return params;
+		BigInteger shareTarget = tau.shiftRight(shift);
+		params = jsonArray(
 				jobId,
 				candidate.height,
 				Hex.toHexString(candidate.msg),
 				"",
 				"",
 				Integer.toHexString(candidate.version),
-                reducedShareMessages ? tau.divide(new BigInteger("1000")).toString() : tau.toString(),
+                reducedShareMessages ? shareTarget.divide(new BigInteger("1000")).toString() : shareTarget.toString(),
 				"",
 				true
 		);
+		jobParams.set(shift, params);
+		return params;
+	}
+
+	public ByteBuffer getNotification() {
+		return getNotification(0);
+	}
+
+	/**
+	 * Gets the mining.notify line for this template at the given vardiff shift. Each line is encoded once and
+	 * shared read-only by every connection at that shift, each caller gets its own position over the same bytes.
+	 */
+	public ByteBuffer getNotification(int shift) {
+		ByteBuffer encoded = notifications.get(shift);
+		if (encoded == null) {
+			byte[] line = (Announcement.miningJob(this, shift).toJson().toString() + "\n").getBytes(StandardCharsets.UTF_8);
+			encoded = ByteBuffer.wrap(line).asReadOnlyBuffer();
+			notifications.set(shift, encoded);
+		}
+		return encoded.duplicate();
 	}
 }
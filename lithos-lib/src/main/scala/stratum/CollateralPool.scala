@@ -0,0 +1,69 @@
+package stratum
+
+import org.slf4j.{Logger, LoggerFactory}
+
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import scala.util.{Failure, Success, Try}
+
+/**
+ * Keeps a few signed holding transactions ready for the current chain height, so requesting a collateralized
+ * mining candidate never has to compile contracts, scan utxos or sign on the template polling path. The batch is
+ * rebuilt in the background when the height changes or one of its inputs is spent.
+ * @param size Number of distinct collateral inputs to keep signed transactions for
+ */
+class CollateralPool(retriever: CollateralRetriever, nodeInterface: NodeInterface, size: Int) {
+  private val logger: Logger = LoggerFactory.getLogger("CollateralPool")
+  private val prepared = new AtomicReference[Vector[PreparedCollateral]](Vector.empty)
+  @volatile private var chainHeight: Int = -1
+  private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor{
+    r =>
+      val t = new Thread(r, "collateral-pool")
+      t.setDaemon(true)
+      t
+  }
+
+  def start(interval: Long): Unit = {
+    executor.scheduleWithFixedDelay(() => refresh(), 0, interval, TimeUnit.MILLISECONDS)
+  }
+
+  /**
+   * @return A prepared transaction for the current height, if the background refresh has one ready
+   */
+  def take: Option[PreparedCollateral] = {
+    prepared.get().find(_.height == chainHeight)
+  }
+
+  /**
+   * Drops the transaction spending the given input, e.g. after the node refused it, and rebuilds in the background
+   */
+  def invalidate(inputId: String): Unit = {
+    prepared.updateAndGet(_.filterNot(_.inputId == inputId))
+    requestRefresh()
+  }
+
+  def requestRefresh(): Unit = {
+    Try(executor.execute(() => refresh()))
+  }
+
+  def stop(): Unit = executor.shutdownNow()
+
+  private def refresh(): Unit = {
+    Try{
+      chainHeight = nodeInterface.info().getInt("fullHeight")
+      val current = prepared.get()
+      // Checking a handful of box ids is far cheaper than rebuilding, only rebuild when something changed
+      val stillUnspent = current.filter(p => p.height == chainHeight && nodeInterface.isBoxUnspent(p.inputId))
+      if(stillUnspent.size < current.size || current.isEmpty) {
+        val rebuilt = retriever.prepareCollateral(size).toVector
+        prepared.set(rebuilt)
+        rebuilt.headOption.foreach(p => chainHeight = math.max(chainHeight, p.height))
+        logger.info(s"Prepared ${rebuilt.size} collateral transactions for height ${rebuilt.headOption.map(_.height).getOrElse(chainHeight)}")
+      }
+    } match {
+      case Success(_) =>
+      case Failure(e) =>
+        logger.warn(s"Could not refresh collateral transactions: ${e.getMessage}")
+    }
+  }
+}
@@ -1,10 +1,9 @@
 package stratum
 
-import lfsm.LFSMHelpers
+import lfsm.ContractRegistry
 import lfsm.collateral.CollateralContract
-import lfsm.rollup.RollupContracts
 import org.bouncycastle.util.encoders.Hex
-import org.ergoplatform.appkit.{Address, ErgoClient, ErgoId, ErgoProver, ErgoValue, JavaHelpers, Parameters}
+import org.ergoplatform.appkit.{Address, BlockchainContext, ErgoClient, ErgoId, ErgoProver, ErgoValue, JavaHelpers, Parameters}
 import org.slf4j.{Logger, LoggerFactory}
 import sigma.SigmaProp
 import sigma.ast.ErgoTree
@@ -16,21 +15,34 @@ import work.lithos.plasma.collections.PlasmaMap
 
 import scala.util.Try
 
+/**
+ * Signed holding transaction spending a collateral input, ready to be sent with a mining candidate request
+ * @param height Chain height the holding output was built for
+ * @param reward Block reward the collateral covers at that height
+ */
+case class PreparedCollateral(height: Int, reward: Long, inputId: String, txId: String, txJson: String, pk: String)
+
 class CollateralRetriever(client: ErgoClient, prover: ErgoProver) {
   private val logger: Logger = LoggerFactory.getLogger("CollateralRetriever")
   def getCollateral = {
+    val prepared = prepareCollateral(1).head
+    (prepared.txId, prepared.txJson, prepared.pk)
+  }
+
+  /**
+   * Signs holding transactions for up to `max` distinct collateral inputs at the current height
+   */
+  def prepareCollateral(max: Int): Seq[PreparedCollateral] = {
     client.execute{
       ctx =>
-        val payout   = RollupContracts.mkPayoutContract(ctx)
-        val eval     = RollupContracts.mkEvalContract(ctx,
-          LFSMHelpers.EVAL_PERIOD, payout.hashedPropBytes,
-          LFSMHelpers.getFPToken(ctx))
-        val holding  = RollupContracts.mkHoldingContract(ctx, LFSMHelpers.HOLDING_PERIOD, eval.hashedPropBytes)
-        val collateral = CollateralContract.mkTestnetCollatContract(ctx, holding.hashedPropBytes)
+        val contracts  = ContractRegistry(ctx)
+        val holding    = contracts.holding
+        val collateral = contracts.collateral
         val utxos = ctx.getUnspentBoxesFor(collateral.address(ctx.getNetworkType), 0, 10)
         //val utxos = JavaHelpers.toJList(ctx.getBoxesById("ce00d6e0f4fd3390c0519bb0d24824e1e6b06978163f4845a7cf2c1c7d8f1b65").toIndexedSeq)
 
-        val currentBlockReward = CollateralContract.coinsToIssue(ctx.getHeight)
+        val height = ctx.getHeight
+        val currentBlockReward = CollateralContract.coinsToIssue(height)
         logger.info(s"Found ${utxos.size()} collateral utxos")
         val utxosWithLender = JavaHelpers.toIndexedSeq(utxos).filter{
           i => Try(InputUTXO(i).registers(1).getValue.asInstanceOf[SigmaProp]).isSuccess &&
@@ -39,7 +51,6 @@ class CollateralRetriever(client: ErgoClient, prover: ErgoProver) {
         logger.info(s"Found ${utxosWithLender.size} collateral utxos with value >= ${currentBlockReward}")
         if(utxos.size() == 0 || utxosWithLender.isEmpty)
           throw new CollateralNotFoundException("Could not find collateral utxos needed to create block candidate")
-        val collateralInput = InputUTXO(utxosWithLender.head)
 
         val emptyTree = PlasmaMap[Array[Byte], Array[Byte]](AvlTreeFlags.AllOperationsAllowed, PlasmaParameters.default)
         val holdingOutput = UTXO(holding, currentBlockReward,
@@ -47,36 +58,51 @@ class CollateralRetriever(client: ErgoClient, prover: ErgoProver) {
             emptyTree.ergoValue,
             ErgoValue.of(0),
             ErgoValue.of(BigInt(0).bigInteger),
-            ErgoValue.of(ctx.getHeight.toLong)
+            ErgoValue.of(height.toLong)
           ))
 
-
-        val lenderPK = collateralInput.registers(1).getValue.asInstanceOf[SigmaProp]
-        val lenderBoolean = lenderPK match {
-          case CSigmaProp(sigmaTree) => sigmaTree
-          case _ => throw new InvalidSigmaBooleanException("Found invalid SigmaBoolean on collateral utxo")
+        // Inputs whose lender register can't be turned into a miner pk are skipped rather than failing the batch,
+        // unless none of them work
+        val prepared = utxosWithLender.take(max).flatMap{
+          input =>
+            val attempt = Try(signHolding(ctx, InputUTXO(input), holdingOutput, height, currentBlockReward))
+            attempt.failed.foreach(e => logger.warn(s"Skipping collateral utxo ${input.getId}: ${e.getMessage}"))
+            attempt.toOption
         }
-        val lenderAddress = Address.fromErgoTree(ErgoTree.fromSigmaBoolean(lenderBoolean), ctx.getNetworkType)
-        logger.info(s"Got collateral utxo ${collateralInput.id} from lender ${lenderAddress}")
-        // TODO: Filter utxos by valid SigmaBoolean existence, we only check for SigmaProp
-        val pkString = lenderBoolean match {
-          case leaf: SigmaLeaf =>
-            leaf match {
-              case ProveDlog(value) =>
-                Hex.toHexString(GroupElementSerializer.toBytes(value))
-              case _ => throw new InvalidSigmaBooleanException("Found invalid SigmaBoolean on collateral utxo")
-            }
+        if(prepared.isEmpty)
+          throw new InvalidSigmaBooleanException("Found invalid SigmaBoolean on collateral utxo")
+        prepared
+    }
+  }
+
+  private def signHolding(ctx: BlockchainContext, collateralInput: InputUTXO, holdingOutput: UTXO,
+                          height: Int, reward: Long): PreparedCollateral = {
+    val lenderPK = collateralInput.registers(1).getValue.asInstanceOf[SigmaProp]
+    val lenderBoolean = lenderPK match {
+      case CSigmaProp(sigmaTree) => sigmaTree
+      case _ => throw new InvalidSigmaBooleanException("Found invalid SigmaBoolean on collateral utxo")
+    }
+    val lenderAddress = Address.fromErgoTree(ErgoTree.fromSigmaBoolean(lenderBoolean), ctx.getNetworkType)
+    logger.info(s"Got collateral utxo ${collateralInput.id} from lender ${lenderAddress}")
+    // TODO: Filter utxos by valid SigmaBoolean existence, we only check for SigmaProp
+    val pkString = lenderBoolean match {
+      case leaf: SigmaLeaf =>
+        leaf match {
+          case ProveDlog(value) =>
+            Hex.toHexString(GroupElementSerializer.toBytes(value))
           case _ => throw new InvalidSigmaBooleanException("Found invalid SigmaBoolean on collateral utxo")
         }
-
-        val txB = TxBuilder(ctx)
-        val uTx = txB
-          .setInputs(collateralInput)
-          .setOutputs(holdingOutput)
-          .setPreHeader(ctx.createPreHeader().minerPk(lenderAddress.getPublicKeyGE).build())
-          .buildTx(0, lenderAddress)
-        val sTx = prover.sign(uTx)
-        (sTx.getId.replace("\"", ""), sTx.toJson(false, false), pkString)
+      case _ => throw new InvalidSigmaBooleanException("Found invalid SigmaBoolean on collateral utxo")
     }
+
+    val txB = TxBuilder(ctx)
+    val uTx = txB
+      .setInputs(collateralInput)
+      .setOutputs(holdingOutput)
+      .setPreHeader(ctx.createPreHeader().minerPk(lenderAddress.getPublicKeyGE).build())
+      .buildTx(0, lenderAddress)
+    val sTx = prover.sign(uTx)
+    PreparedCollateral(height, reward, collateralInput.id.toString, sTx.getId.replace("\"", ""),
+      sTx.toJson(false, false), pkString)
   }
 }
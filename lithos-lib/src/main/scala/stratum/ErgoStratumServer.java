@@ -1,7 +1,5 @@
 package stratum;
 
-import com.redbottledesign.bitcoin.rpc.stratum.MalformedStratumMessageException;
-import com.redbottledesign.bitcoin.rpc.stratum.message.ResultFactory;
 import com.redbottledesign.bitcoin.rpc.stratum.transport.AbstractConnectionState;
 import com.redbottledesign.bitcoin.rpc.stratum.transport.ConnectionState;
 import com.redbottledesign.bitcoin.rpc.stratum.transport.StatefulMessageTransport;
@@ -14,17 +12,16 @@ import org.slf4j.LoggerFactory;
 import stratum.counter.SubscriptionIdCounter;
 import stratum.data.Options;
 import stratum.message.Announcement;
+import stratum.message.AnnouncementMessage;
 import stratum.message.Requests;
-import stratum.message.Response;
-
-import org.bouncycastle.util.encoders.Hex;
+import stratum.transport.SelectorTransport;
 
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class ErgoStratumServer extends StratumTcpServer {
@@ -32,9 +29,14 @@ public class ErgoStratumServer extends StratumTcpServer {
 	private final Options options;
 	private final SubscriptionIdCounter subscriptionIdCounter = new SubscriptionIdCounter();
 	public final Pool pool;
+	public final ShareVerifier shareVerifier;
     private final Logger logger = LoggerFactory.getLogger("ErgoStratumServer");
+	private volatile SelectorTransport selectorTransport;
+	// Sessions of JStratum connections by connection id, so each is sent jobs at its own vardiff share target
+	private final Map<String, MinerSession> sessions = new ConcurrentHashMap<>();
 	public ErgoStratumServer(Options options) {
 		this.options = options;
+		shareVerifier = new ShareVerifier(this, options.shareVerifierThreads, options.shareQueueCapacity);
 		pool = new Pool(options, this);
 		try {
 			pool.start();
@@ -47,6 +49,7 @@ public class ErgoStratumServer extends StratumTcpServer {
                              boolean useCollateral, ErgoClient client, ErgoProver prover,
                              String apiKey, boolean reducedShareMessages) {
         this.options = options;
+        shareVerifier = new ShareVerifier(this, options.shareVerifierThreads, options.shareQueueCapacity);
         pool = new Pool(options, this, useCollateral, client, prover, apiKey, reducedShareMessages);
         if(!thirdPartyScheduling){
             try {
@@ -68,11 +71,14 @@ public class ErgoStratumServer extends StratumTcpServer {
 		return new StratumTcpServerConnection(this, connectionSocket) {
 			@Override
 			protected ConnectionState createPostConnectState() {
-				return new ErgoConnectionState(ErgoStratumServer.this, this, subscriptionIdCounter.next(), (InetSocketAddress) connectionSocket.getRemoteSocketAddress());
+				ErgoConnectionState state = new ErgoConnectionState(ErgoStratumServer.this, this, nextSubscriptionId(), (InetSocketAddress) connectionSocket.getRemoteSocketAddress());
+				sessions.put(getConnectionId(), state.session);
+				return state;
 			}
 
             @Override
             public void close() {
+                sessions.remove(getConnectionId());
                 if (this.isOpen()) {
                     try {
                         this.getSocket().close();
@@ -88,6 +94,14 @@ public class ErgoStratumServer extends StratumTcpServer {
     @Override
     public void stopListening() {
         logger.info("Now stopping ErgoStratumServer");
+        shareVerifier.stop();
+        // Lets queued super shares reach the database before the process exits
+        pool.jobManager.shutdown();
+        if(selectorTransport != null) {
+            logger.info("Closing selector transport connections");
+            selectorTransport.stop();
+            return;
+        }
 
             try {
                 logger.info("Attempting to close sockets");
@@ -105,15 +119,49 @@ public class ErgoStratumServer extends StratumTcpServer {
 
     }
 
+	/**
+	 * Accepts miners on a single selector thread instead of the thread-per-connection JStratum transport.
+	 * Blocks the calling thread until {@link #stopListening()} is called.
+	 */
+	public void startSelectorListening(int port) throws IOException {
+		selectorTransport = new SelectorTransport(this);
+		selectorTransport.listen(port);
+	}
+
+	public Options getOptions() {
+		return options;
+	}
+
+	public MinerSession newSession(MinerSession.ResponseSink sink, InetSocketAddress socketAddress) {
+		return new MinerSession(this, sink, nextSubscriptionId(), socketAddress);
+	}
+
+	private synchronized String nextSubscriptionId() {
+		return subscriptionIdCounter.next();
+	}
+
 	@Override
 	protected void acceptConnection(StratumTcpServerConnection connection) {
 		getConnections().put(connection.getConnectionId(), connection);
 	}
 
 	public void broadcastMiningJob(BlockTemplate blockTemplate) {
+		if (selectorTransport != null) {
+			selectorTransport.broadcast(blockTemplate);
+			return;
+		}
+		// Closed connections remove their own session, this only drops connections expired without being closed
+		sessions.keySet().retainAll(getConnections().asMap().keySet());
+		// JStratum queues each message on the connection's output thread, share one message per vardiff shift so its
+		// JSON is only built once for every connection at that difficulty
+		AnnouncementMessage[] miningJobs = new AnnouncementMessage[BlockTemplate.MAX_SHIFT + 1];
 		getConnections().asMap().forEach((k, v) -> {
             try {
-                v.sendResponse(Announcement.miningJob(blockTemplate));
+                MinerSession session = sessions.get(k);
+                int shift = session != null ? session.getShift() : 0;
+                if (miningJobs[shift] == null)
+                    miningJobs[shift] = Announcement.miningJob(blockTemplate, shift);
+                v.sendResponse(miningJobs[shift]);
             } catch (Exception e) {
                 logger.warn("Failed to send mining job due to connection error (Did you reconnect your miner?)");
             }
@@ -123,68 +171,14 @@ public class ErgoStratumServer extends StratumTcpServer {
 
 	public static class ErgoConnectionState extends AbstractConnectionState {
 
-		private String extraNonce1;
-        private final Logger logger = LoggerFactory.getLogger("ErgoConnectionState");
+		final MinerSession session;
+
 		public ErgoConnectionState(ErgoStratumServer server, StatefulMessageTransport transport, String subscriptionId, InetSocketAddress socketAddress) {
 			super(transport);
-			registerRequestHandler(Requests.Subscribe.NAME, Requests.Subscribe.class, m -> {
-                logger.info("Got new subscription request: {}", m);
-				try {
-					extraNonce1 = server.pool.jobManager.extraNonceCounter.next();
-					getTransport().sendResponse(Response.subscribe(m.getId(), subscriptionId, extraNonce1, 4));
-					getTransport().sendResponse(Announcement.difficulty(new BigDecimal("1.0")));
-					getTransport().sendResponse(Announcement.miningJob(server.pool.jobManager.currentJob));
-
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				} catch (Exception e){
-					logger.error("Connection error", e);
-				}
-			});
-			registerRequestHandler(Requests.Authorize.NAME, Requests.Authorize.class, m -> {
-                logger.info("Got new authorization request: workerName={}, password={}. Authorized.", m.workerName, m.password);
-				try {
-					getTransport().sendResponse(Response.authorize(m.getId(), true, null));
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			});
-			registerRequestHandler(Requests.Submit.NAME, Requests.Submit.class, m -> {
-				try {
-					if (extraNonce1 == null) {
-						getTransport().sendResponse(Response.submit(m.getId(), null, "25: not subscribed"));
-						return;
-					}
-
-					String name = (String) m.getParams().get(0);
-					String jobId = (String) m.getParams().get(1);
-					byte[] extraNonce2 = Hex.decode((String) m.getParams().get(2));
-					String nTime = (String) m.getParams().get(3);
-					server.pool.jobManager.processShare(jobId, new BigInteger("1"), Hex.decode(extraNonce1), extraNonce2, nTime, socketAddress.getHostString(), socketAddress.getPort(), name);
-					getTransport().sendResponse(Response.submit(m.getId(), ResultFactory.getInstance().createResult(Boolean.TRUE), null));
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				} catch (JobManager.ProcessingException e) {
-					try {
-
-                        // We can accept potentially old shares here since the final judge of shares being "stale" is the TIME_FP
-						if(e.getId() == 21) {
-                            logger.warn("Received potentially old share from miner");
-                            getTransport().sendResponse(Response.submit(m.getId(), ResultFactory.getInstance().createResult(Boolean.TRUE), null));
-                            getTransport().sendResponse(Announcement.miningJob(server.pool.jobManager.currentJob));
-                        }else{
-                            logger.error("Share processing error", e);
-                            getTransport().sendResponse(Response.submit(m.getId(), null, e.getId()+ ": " + e.getMessage()));
-                        }
-					} catch (IOException ex) {
-						throw new RuntimeException(e);
-					} catch (MalformedStratumMessageException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                } catch (MalformedStratumMessageException e) {
-					logger.error("MalformedStratumMessage", e);
-				}
-			});
+			session = new MinerSession(server, message -> getTransport().sendResponse(message), subscriptionId, socketAddress);
+			registerRequestHandler(Requests.Subscribe.NAME, Requests.Subscribe.class, session::onSubscribe);
+			registerRequestHandler(Requests.Authorize.NAME, Requests.Authorize.class, session::onAuthorize);
+			registerRequestHandler(Requests.Submit.NAME, Requests.Submit.class, session::onSubmit);
 		}
 	}
 }
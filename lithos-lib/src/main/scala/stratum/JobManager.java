@@ -1,10 +1,7 @@
 package stratum;
 
-import lfsm.LFSMHelpers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import scala.math.BigInt;
-import sigma.pow.Autolykos2PowValidation;
 import stratum.counter.ExtraNonceCounter;
 import stratum.counter.JobCounter;
 import stratum.data.*;
@@ -14,6 +11,12 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -21,13 +24,15 @@ import java.util.stream.IntStream;
 public class JobManager {
 
 	private static final BigInteger N_BASE = new BigInteger("2").pow(26);
+	// N grows by 5% every period, rounded down before scaling as in the reference implementation
+	private static final BigInteger N_STEP_DIVISOR = BigInteger.valueOf(100), N_STEP_MULTIPLIER = BigInteger.valueOf(105);
     private final Logger logger = LoggerFactory.getLogger("JobManager");
 	private static final long
 			INCREASE_START = 600 * 1024,
 			INCREASE_PERIOD_FOR_N = 50 * 1024,
 			N_INCREASEMENT_HEIGHT_MAX = 9216000;
 
-	private static final byte[] M;
+	static final byte[] M;
 
 	static {
 		M = new byte[1024 * 8];
@@ -36,7 +41,7 @@ public class JobManager {
 		}
 	}
 
-	private static BigInteger N(long height) {
+	static BigInteger N(long height) {
 		height = Math.min(N_INCREASEMENT_HEIGHT_MAX, height);
 		if (height < INCREASE_START) {
 			return N_BASE;
@@ -46,7 +51,7 @@ public class JobManager {
 			BigInteger res = N_BASE;
 			int iterationsNumber = (int) Math.floor((height - INCREASE_START) / (double) INCREASE_PERIOD_FOR_N) + 1;
 			for (int i = 0; i < iterationsNumber; i++) {
-				res = res.divide(new BigInteger("100").multiply(new BigInteger("105")));
+				res = res.divide(N_STEP_DIVISOR).multiply(N_STEP_MULTIPLIER);
 			}
 			return res;
 		}
@@ -80,38 +85,56 @@ public class JobManager {
 	public final byte[] extraNoncePlaceholder = { (byte) 0xf0, 0x00, 0x00, 0x0f, (byte) 0xf1, 0x11, 0x11, 0x1f};
 	public final int extraNonce2Size;
 
-	public BlockTemplate currentJob;
-	private final HashMap<String, BlockTemplate> validJobs = new HashMap<>();
+	private final JobRegistry jobs;
+
+	/**
+	 * Called on the verifying thread the moment a share meets the network target, ahead of any event delivery
+	 */
+	public interface SolutionListener {
+		void onSolution(BlockTemplate job, byte[] nonce);
+	}
+
+	private volatile SolutionListener solutionListener;
 
 	private final Options options;
 
 	public JobManager(Options options) {
 		extraNonceCounter = new ExtraNonceCounter(options.extraNonce1Size);
 		this.options = options;
+		this.jobs = new JobRegistry(options.jobsPerHeight);
 		extraNonce2Size = extraNoncePlaceholder.length - extraNonceCounter.size;
 	}
 
-	public void updateCurrentJob(MiningCandidate miningCandidate) {
+	public synchronized void updateCurrentJob(MiningCandidate miningCandidate) {
 		BlockTemplate blockTemplate = new BlockTemplate(
 				jobCounter.next(),
 				miningCandidate,
 				options.tau,
                 miningCandidate.proof != null,
-                false
+                false,
+				options.maxTrackedShares
 		);
 
-		this.currentJob = blockTemplate;
+		// Published before miners hear about it, so their first shares find the job
+		jobs.publish(blockTemplate);
 
 		triggerEvent(new UpdatedBlock(blockTemplate));
+	}
 
-		validJobs.put(blockTemplate.jobId, blockTemplate);
+	public void setSolutionListener(SolutionListener solutionListener) {
+		this.solutionListener = solutionListener;
+	}
+
+	public BlockTemplate getCurrentJob() {
+		return jobs.current();
 	}
 
 	/**
 	 * @return whether a new block was processed
 	 */
-	public boolean processTemplate(MiningCandidate candidate, BigInteger tau,
+	public synchronized boolean processTemplate(MiningCandidate candidate, BigInteger tau,
                                    boolean usesCollateral, boolean reducedShareMessages) {
+		BlockTemplate currentJob = jobs.current();
 		boolean isNewBlock = currentJob == null;
 		// Block is new if it's the first one seen or if the hash is different and the height is higher
 		if (!isNewBlock && !Arrays.equals(currentJob.candidate.msg, candidate.msg)) {
@@ -129,16 +152,15 @@ public class JobManager {
 				candidate,
 				tau,
                 usesCollateral,
-                reducedShareMessages
+                reducedShareMessages,
+				options.maxTrackedShares
 		);
 
-		currentJob = blockTemplate;
-
-
+		// Jobs from the same height stay valid, shares in flight for them are still good
+		if (jobs.publish(blockTemplate))
+			logger.info("Chain tip moved to height {}, retired previous jobs", candidate.height);
 
 		triggerEvent(new NewBlock(blockTemplate));
-        validJobs.clear();
-		validJobs.put(blockTemplate.jobId, blockTemplate);
         logger.info("Sent new job with height = {}, b = {}", candidate.height, candidate.b);
 		return true;
 	}
@@ -158,6 +180,10 @@ public class JobManager {
 		void run(int id, String msg) throws ProcessingException;
 	}
 
+	/**
+	 * @param difficulty Share difficulty relative to the job's tau, rounded down to a power of two. Super shares are
+	 *                   always judged against the real tau.
+	 */
 	public byte[] processShare(String jobId, BigInteger difficulty, byte[] extraNonce1, byte[] extraNonce2, String nTime, String ipAddress, int port, String workerName) throws ProcessingException {
 		ThrowException shareError = (errorId, errorMessage) -> {
 			triggerEvent(new Share(new Fail(
@@ -175,7 +201,9 @@ public class JobManager {
 			return null;
 		}
 
-		BlockTemplate job = validJobs.get(jobId);
+		BlockTemplate job = jobs.get(jobId);
+		// Vardiff difficulties are powers of two, the share target is tau shifted right by their exponent
+		int difficultyShift = Math.max(0, difficulty.bitLength() - 1);
 
 		if (job == null) {
 			shareError.run(21, "solution was for old block");
@@ -189,39 +217,57 @@ public class JobManager {
 			return null;
 		}
 
-//		if (!job.registerSubmit(extraNonce1, extraNonce2, nTime, nonce)) {
-//			shareError.run(22, "duplicate share");
-//			return null;
-//		}
-		byte[] h = Utils.intBytes((int) job.candidate.height);
-		BigInteger fH = Autolykos2PowValidation.hitForVersion2ForMessageWithChecks(32, job.msg, nonce, h, N(job.candidate.height).intValue()).bigInteger();
+		if (!job.registerSubmit(nonce)) {
+			shareError.run(22, "duplicate share");
+			return null;
+		}
+		PowKernel kernel = job.kernel;
+		long[] hit = kernel.hit(nonce);
+		boolean isBlock = kernel.isBlock(hit);
+		boolean isSuperShare = kernel.isSuperShare(hit);
+
+		// Check if share didn't reach the miner's difficulty, the common rejection so it is decided before any allocation
+		if (!isSuperShare && !kernel.meetsShareTarget(hit, difficultyShift)) {
+			shareError.run(32, "Low difficulty share");
+			return null;
+		}
+
+		BigInteger fH = PowKernel.toBigInteger(hit);
+		if (isBlock || isSuperShare) {
+			// These end up on chain, confirm them with the reference implementation before acting on them
+			BigInteger referenceHit = kernel.referenceHit(nonce);
+			if (!referenceHit.equals(fH)) {
+				logger.error("PoW kernel hit {} differs from reference hit {} for job {}", fH, referenceHit, jobId);
+				fH = referenceHit;
+				isBlock = job.candidate.b != null && job.candidate.b.compareTo(fH) >= 0;
+				isSuperShare = job.superShareThreshold.compareTo(fH) >= 0;
+				if (!isSuperShare && job.tau.shiftRight(difficultyShift).compareTo(fH) < 0) {
+					shareError.run(32, "Low difficulty share");
+					return null;
+				}
+			}
+		}
 
 		byte[] blockHash;
-        boolean isBlock = false;
-        boolean isSuperShare = false;
 		// Check if share is a block candidate (matched network difficulty)
-		if (job.candidate.b.compareTo(fH) >= 0) {
-			// Must submit solution
-            isBlock = true;
+		if (isBlock) {
+			// Must submit solution, hand it off before anything else happens with this share
+			SolutionListener listener = solutionListener;
+			if (listener != null)
+				listener.onSolution(job, nonce);
             logger.info("Got solution below target");
 		}
         blockHash = fH.toByteArray();
-        BigInteger realTau = LFSMHelpers.convertTauOrScore(LFSMHelpers.convertTauOrScore(BigInt.apply(job.tau))).bigInteger();
-        BigInteger superShareThreshold = realTau.divide(BigInteger.valueOf(LFSMHelpers.NISP_COEFFICIENT()));
+        BigInteger realTau = job.realTau;
 
-        if(superShareThreshold.compareTo(fH) >= 0){
+        if(isSuperShare){
             if(job.usedCollateral) {
                 logger.info("Got super share at coefficient {} from base difficulty", realTau.divide(fH));
-                isSuperShare = true;
             }else{
+                isSuperShare = false;
                 logger.info("Got super share at coefficient {}, but miner was solo-mining!", realTau.divide(fH));
             }
         }else {
-            // Check if share didn't reach the miner's difficulty
-            if (job.tau.compareTo(fH) < 0) {
-                shareError.run(32, "Low difficulty share");
-                return null;
-            }
             blockHash = new byte[0];
         }
 
@@ -245,27 +291,104 @@ public class JobManager {
 
 	// Event listener stuff
 
-	private final HashMap<Class<? extends JobManagerEvent>, List<Consumer<? extends JobManagerEvent>>> eventListeners = new HashMap<>();
+	/**
+	 * How a listener receives events. Each lane is a single thread, so a listener sees events in the order they
+	 * were triggered, and neither lane ever runs on the thread that triggered the event. A full lane makes the
+	 * triggering thread wait for room instead.
+	 */
+	public enum Delivery {
+		/** Block found and new work, kept free of slow listeners so miners hear about it right away */
+		CRITICAL,
+		/** Bookkeeping such as persisting super shares, may wait behind database or node I/O */
+		BACKGROUND
+	}
+
+	private static class Listener {
+		final Consumer<? extends JobManagerEvent> consumer;
+		final Delivery delivery;
+
+		Listener(Consumer<? extends JobManagerEvent> consumer, Delivery delivery) {
+			this.consumer = consumer;
+			this.delivery = delivery;
+		}
+	}
+
+	// Events waiting per lane. A full lane blocks the triggering thread until an event is delivered rather than drop
+	// the new one, losing a block or super share costs far more than a slow response.
+	private static final int LANE_CAPACITY = 65536;
+
+	private final ConcurrentHashMap<Class<? extends JobManagerEvent>, List<Listener>> eventListeners = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor criticalLane = lane("job-events-critical");
+	private final ThreadPoolExecutor backgroundLane = lane("job-events-background");
+
+	private static ThreadPoolExecutor lane(String name) {
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(LANE_CAPACITY), r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}, (r, executor) -> {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Event lane " + name + " is shut down");
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for room in event lane " + name, e);
+			}
+		});
+	}
 
 	public <T extends JobManagerEvent>void addEventListener(Class<T> type, Consumer<T> consumer) {
+		addEventListener(type, consumer, Delivery.BACKGROUND);
+	}
+
+	public <T extends JobManagerEvent>void addEventListener(Class<T> type, Consumer<T> consumer, Delivery delivery) {
 		Objects.requireNonNull(type, "type");
-		eventListeners.putIfAbsent(type, new ArrayList<>());
-		eventListeners.get(type).add(consumer);
+		Objects.requireNonNull(delivery, "delivery");
+		eventListeners.computeIfAbsent(type, t -> new CopyOnWriteArrayList<>()).add(new Listener(consumer, delivery));
 	}
 
 	public <T extends JobManagerEvent>void removeEventListener(Class<T> type, Consumer<T> consumer) {
 		Objects.requireNonNull(type, "type");
-		if (eventListeners.containsKey(type)) {
-			eventListeners.get(type).remove(consumer);
+		List<Listener> listeners = eventListeners.get(type);
+		if (listeners != null) {
+			listeners.removeIf(l -> l.consumer == consumer);
 		}
 	}
 
-	@SuppressWarnings({"unchecked", "rawtypes"})
 	private <T extends JobManagerEvent>void triggerEvent(T event) {
-		if (eventListeners.containsKey(event.getClass())) {
-			for (Consumer<? extends JobManagerEvent> consumer : eventListeners.get(event.getClass())) {
-				((Consumer) consumer).accept(event);
+		List<Listener> listeners = eventListeners.get(event.getClass());
+		if (listeners == null) return;
+		for (Listener listener : listeners) {
+			ThreadPoolExecutor lane = listener.delivery == Delivery.CRITICAL ? criticalLane : backgroundLane;
+			try {
+				lane.execute(() -> deliver(listener, event));
+			} catch (RejectedExecutionException e) {
+				logger.warn("Dropped {}: {}", event.getClass().getSimpleName(), e.getMessage());
 			}
 		}
 	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void deliver(Listener listener, JobManagerEvent event) {
+		try {
+			((Consumer) listener.consumer).accept(event);
+		} catch (Exception e) {
+			logger.error("Listener for " + event.getClass().getSimpleName() + " failed", e);
+		}
+	}
+
+	/**
+	 * Stops the event lanes once the events already queued have been delivered
+	 */
+	public void shutdown() {
+		criticalLane.shutdown();
+		backgroundLane.shutdown();
+		try {
+			if (!backgroundLane.awaitTermination(10, TimeUnit.SECONDS))
+				logger.warn("Background events still pending after shutdown, {} left", backgroundLane.getQueue().size());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 }
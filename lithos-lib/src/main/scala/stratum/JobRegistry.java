@@ -0,0 +1,76 @@
+package stratum;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Jobs that shares may currently be submitted against. The current job and the last few templates at the chain
+ * tip are published together as one immutable snapshot, so connection and verifier threads read them without
+ * locking and never see a job list that is being cleared. Refreshing the template at the same height keeps the
+ * previous jobs valid, only a new height retires them.
+ */
+public class JobRegistry {
+
+	private static final class Snapshot {
+		final BlockTemplate current;
+		// Newest first, all at the height of the current job
+		final BlockTemplate[] recent;
+
+		Snapshot(BlockTemplate current, BlockTemplate[] recent) {
+			this.current = current;
+			this.recent = recent;
+		}
+	}
+
+	private final int depth;
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(null, new BlockTemplate[0]));
+
+	/**
+	 * @param depth Number of templates kept valid for the current height
+	 */
+	public JobRegistry(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+		this.depth = depth;
+	}
+
+	/**
+	 * Makes the given template the current job
+	 * @return true if the template moved to a new height and retired every older job
+	 */
+	public boolean publish(BlockTemplate template) {
+		while (true) {
+			Snapshot previous = snapshot.get();
+			boolean newTip = previous.current == null || previous.current.candidate.height != template.candidate.height;
+			BlockTemplate[] recent;
+			if (newTip) {
+				recent = new BlockTemplate[] {template};
+			} else {
+				int kept = Math.min(previous.recent.length, depth - 1);
+				recent = new BlockTemplate[kept + 1];
+				recent[0] = template;
+				System.arraycopy(previous.recent, 0, recent, 1, kept);
+			}
+			if (snapshot.compareAndSet(previous, new Snapshot(template, recent)))
+				return newTip;
+		}
+	}
+
+	public BlockTemplate current() {
+		return snapshot.get().current;
+	}
+
+	/**
+	 * @return The job with the given id, or null if it was retired
+	 */
+	public BlockTemplate get(String jobId) {
+		// Only a handful of jobs are ever live, a scan is cheaper than hashing the id
+		for (BlockTemplate template : snapshot.get().recent) {
+			if (template.jobId.equals(jobId)) return template;
+		}
+		return null;
+	}
+
+	public int size() {
+		return snapshot.get().recent.length;
+	}
+}
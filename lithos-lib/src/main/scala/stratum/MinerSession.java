@@ -0,0 +1,192 @@
+package stratum;
+
+import com.redbottledesign.bitcoin.rpc.stratum.MalformedStratumMessageException;
+import com.redbottledesign.bitcoin.rpc.stratum.message.ResponseMessage;
+import com.redbottledesign.bitcoin.rpc.stratum.message.ResultFactory;
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stratum.message.Announcement;
+import stratum.message.Requests;
+import stratum.message.Response;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * Per-miner stratum state and request handling (subscribe/authorize/submit), independent of the transport
+ * used to move messages. Both the JStratum thread-per-connection transport and the selector transport
+ * route their requests through a session.
+ */
+public class MinerSession {
+
+	/**
+	 * Writes a response back to the miner owning this session
+	 */
+	public interface ResponseSink {
+		void sendResponse(ResponseMessage message) throws IOException;
+	}
+
+	private final Logger logger = LoggerFactory.getLogger("MinerSession");
+	private final ErgoStratumServer server;
+	private final ResponseSink sink;
+	private final String subscriptionId;
+	private final InetSocketAddress socketAddress;
+
+	private String extraNonce1;
+	// Null when vardiff is disabled, every share is then checked against the job's tau
+	private final VarDiff varDiff;
+	// Submits waiting for verification, answered strictly in arrival order
+	private final ArrayDeque<PendingSubmit> pendingSubmits = new ArrayDeque<>();
+
+	public MinerSession(ErgoStratumServer server, ResponseSink sink, String subscriptionId, InetSocketAddress socketAddress) {
+		this.server = server;
+		this.sink = sink;
+		this.subscriptionId = subscriptionId;
+		this.socketAddress = socketAddress;
+		this.varDiff = server.getOptions().vardiffEnabled ? new VarDiff(server.getOptions(), System.currentTimeMillis()) : null;
+	}
+
+	public void onSubscribe(Requests.Subscribe m) {
+		logger.info("Got new subscription request: {}", m);
+		try {
+			extraNonce1 = server.pool.jobManager.extraNonceCounter.next();
+			sink.sendResponse(Response.subscribe(m.getId(), subscriptionId, extraNonce1, 4));
+			sink.sendResponse(Announcement.difficulty(currentDifficulty()));
+			sink.sendResponse(Announcement.miningJob(server.pool.jobManager.getCurrentJob(), getShift()));
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (Exception e){
+			logger.error("Connection error", e);
+		}
+	}
+
+	public void onAuthorize(Requests.Authorize m) {
+		logger.info("Got new authorization request: workerName={}, password={}. Authorized.", m.workerName, m.password);
+		try {
+			sink.sendResponse(Response.authorize(m.getId(), true, null));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hands the share to the {@link ShareVerifier} and returns without waiting for the result. Responses are
+	 * written once verification finishes, in the same order the shares were submitted.
+	 */
+	public void onSubmit(Requests.Submit m) {
+		PendingSubmit pending = new PendingSubmit(m);
+		synchronized (pendingSubmits) {
+			pendingSubmits.add(pending);
+		}
+		if (extraNonce1 == null) {
+			pending.fail(new JobManager.ProcessingException(25, "not subscribed"));
+			flushSubmits();
+			return;
+		}
+
+		String name;
+		String jobId;
+		byte[] extraNonce2;
+		String nTime;
+		try {
+			name = (String) m.getParams().get(0);
+			jobId = (String) m.getParams().get(1);
+			extraNonce2 = Hex.decode((String) m.getParams().get(2));
+			nTime = (String) m.getParams().get(3);
+		} catch (RuntimeException e) {
+			// Must still be answered, later submits are waiting behind this one
+			pending.fail(new JobManager.ProcessingException(20, "malformed submit parameters"));
+			flushSubmits();
+			return;
+		}
+		int shift = varDiff != null ? varDiff.acceptedShift(System.currentTimeMillis()) : 0;
+		server.shareVerifier.verify(jobId, BigInteger.ONE.shiftLeft(shift), Hex.decode(extraNonce1), extraNonce2, nTime,
+				socketAddress.getHostString(), socketAddress.getPort(), name)
+				.whenComplete((result, error) -> {
+					if (error == null) pending.succeed();
+					else pending.fail(error);
+					flushSubmits();
+				});
+	}
+
+	private void flushSubmits() {
+		synchronized (pendingSubmits) {
+			PendingSubmit next;
+			while ((next = pendingSubmits.peek()) != null && next.done) {
+				pendingSubmits.poll();
+				respond(next);
+			}
+		}
+	}
+
+	private void respond(PendingSubmit pending) {
+		Requests.Submit m = pending.request;
+		try {
+			if (pending.error == null) {
+				sink.sendResponse(Response.submit(m.getId(), ResultFactory.getInstance().createResult(Boolean.TRUE), null));
+				if (varDiff != null && varDiff.onShare(System.currentTimeMillis())) {
+					logger.info("Retargeted {} to difficulty {}", socketAddress, currentDifficulty());
+					sink.sendResponse(Announcement.difficulty(currentDifficulty()));
+					// Miners take their share target from the job's b, so the job is resent with the new target
+					sink.sendResponse(Announcement.miningJob(server.pool.jobManager.getCurrentJob(), getShift()));
+				}
+			} else if (pending.error instanceof JobManager.ProcessingException) {
+				JobManager.ProcessingException e = (JobManager.ProcessingException) pending.error;
+				// Jobs are only retired when the chain tip moves, so this share really is stale. Point the miner at
+				// the current job in case it missed the notification.
+				if(e.getId() == 21) {
+					logger.warn("Received stale share from miner at {}", socketAddress);
+					sink.sendResponse(Response.submit(m.getId(), null, e.getId()+ ": " + e.getMessage()));
+					sink.sendResponse(Announcement.miningJob(server.pool.jobManager.getCurrentJob(), getShift()));
+				}else{
+					if (e.getId() != ShareVerifier.OVERLOADED)
+						logger.error("Share processing error", e);
+					sink.sendResponse(Response.submit(m.getId(), null, e.getId()+ ": " + e.getMessage()));
+				}
+			} else {
+				logger.error("Unexpected error while verifying share", pending.error);
+				sink.sendResponse(Response.submit(m.getId(), null, "20: " + pending.error.getMessage()));
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to send share response to {}: {}", socketAddress, e.getMessage());
+		} catch (MalformedStratumMessageException e) {
+			logger.error("MalformedStratumMessage", e);
+		}
+	}
+
+	/**
+	 * @return Vardiff shift of the jobs sent to this miner, their share target is tau / 2^shift
+	 */
+	public int getShift() {
+		return varDiff != null ? varDiff.getShift() : 0;
+	}
+
+	private BigDecimal currentDifficulty() {
+		return new BigDecimal(BigInteger.ONE.shiftLeft(getShift()));
+	}
+
+	private static class PendingSubmit {
+		final Requests.Submit request;
+		// Written by the verifier thread before done is set, read after done is seen
+		Throwable error;
+		volatile boolean done = false;
+
+		PendingSubmit(Requests.Submit request) {
+			this.request = request;
+		}
+
+		void succeed() {
+			done = true;
+		}
+
+		void fail(Throwable error) {
+			this.error = error;
+			done = true;
+		}
+	}
+}
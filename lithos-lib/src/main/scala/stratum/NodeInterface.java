@@ -10,6 +10,7 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
 
 public class NodeInterface {
     private final Logger logger = LoggerFactory.getLogger("NodeStratumBridge");
@@ -50,6 +51,17 @@ public class NodeInterface {
 
 
 
+	/**
+	 * @return Whether the box is still in the node's utxo set
+	 */
+	public boolean isBoxUnspent(String boxId) {
+		try {
+			return http.send(req("/utxo/byId/" + boxId).build(), HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public JSONObject miningCandidate(boolean useCollateral, String post, String apiKey) {
 		try {
             if(!useCollateral) {
@@ -89,6 +101,14 @@ public class NodeInterface {
 	}
 
 	public boolean sendSolution(String nonce, String pk) {
+		return postSolution(nonce, pk, null) == 200;
+	}
+
+	/**
+	 * @param timeout Time to wait for the node's answer, or null to wait indefinitely
+	 * @return HTTP status of the node's answer
+	 */
+	public int postSolution(String nonce, String pk, Duration timeout) {
 		try {
 			JSONObject postBody = new JSONObject();
 			postBody.put("pk", pk);
@@ -96,13 +116,16 @@ public class NodeInterface {
 			postBody.put("n", nonce);
 			postBody.put("d", 0);
 
-			HttpResponse<String> response = http.send(req("/mining/solution").POST(HttpRequest.BodyPublishers.ofString(postBody.toString())).header("Content-Type", "application/json").build(), HttpResponse.BodyHandlers.ofString());
+			HttpRequest.Builder request = req("/mining/solution").POST(HttpRequest.BodyPublishers.ofString(postBody.toString())).header("Content-Type", "application/json");
+			if (timeout != null)
+				request.timeout(timeout);
+			HttpResponse<String> response = http.send(request.build(), HttpResponse.BodyHandlers.ofString());
 			//System.out.println("postBody: " + postBody.toString());
 			//System.out.println("Sent solution and got response " + response.statusCode());
-			if(response.statusCode() == 500){
-				System.out.println("response body: "+ response.body());
+			if(response.statusCode() != 200){
+				logger.warn("Node answered solution with status {}: {}", response.statusCode(), response.body());
 			}
-			return response.statusCode() == 200;
+			return response.statusCode();
 		} catch (IOException | InterruptedException e) {
 			throw new RuntimeException(e);
 		}
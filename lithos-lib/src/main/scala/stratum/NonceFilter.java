@@ -0,0 +1,99 @@
+package stratum;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Exact set of the 8 byte nonces submitted for one job, used to reject duplicate shares. Nonces are stored as
+ * longs in a fixed-size open-addressing table updated with CAS, so shares verified concurrently need no lock
+ * and a template's memory never grows past its capacity. The table is allocated with the first submit, templates
+ * that never see a share cost nothing.
+ */
+public class NonceFilter {
+
+	// Slot value meaning empty, the nonce 0 is tracked separately
+	private static final long EMPTY = 0L;
+
+	private final int capacity;
+	private final int mask;
+	private final int maxSize;
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicBoolean zeroSeen = new AtomicBoolean(false);
+	private volatile AtomicLongArray slots;
+
+	/**
+	 * @param capacity Number of nonces to track, rounded up so the table stays at most half full
+	 */
+	public NonceFilter(int capacity) {
+		int tableSize = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+		this.capacity = capacity;
+		this.mask = tableSize - 1;
+		this.maxSize = tableSize / 2;
+	}
+
+	/**
+	 * @return true if the nonce had not been submitted before. Once the table is full new nonces are always
+	 * accepted, duplicates beyond that point are left to the fraud proofs.
+	 */
+	public boolean add(long nonce) {
+		if (nonce == EMPTY)
+			return zeroSeen.compareAndSet(false, true);
+
+		AtomicLongArray table = table();
+		int index = mix(nonce) & mask;
+		while (true) {
+			long current = table.get(index);
+			if (current == nonce) return false;
+			if (current == EMPTY) {
+				if (size.get() >= maxSize) return true;
+				if (table.compareAndSet(index, EMPTY, nonce)) {
+					size.incrementAndGet();
+					return true;
+				}
+				// Lost the slot to another thread, it may have inserted this same nonce
+				continue;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	public boolean add(byte[] nonce) {
+		if (nonce.length != 8)
+			throw new IllegalArgumentException("nonce must be 8 bytes");
+		long value = 0;
+		for (byte b : nonce)
+			value = (value << 8) | (b & 0xFF);
+		return add(value);
+	}
+
+	public int size() {
+		return size.get() + (zeroSeen.get() ? 1 : 0);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private AtomicLongArray table() {
+		AtomicLongArray table = slots;
+		if (table == null) {
+			synchronized (this) {
+				table = slots;
+				if (table == null)
+					slots = table = new AtomicLongArray(mask + 1);
+			}
+		}
+		return table;
+	}
+
+	// Extra nonces are counters, spread their low bits across the table
+	private static int mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int) value;
+	}
+}
@@ -3,25 +3,25 @@ package stratum;
 import lfsm.LFSMHelpers;
 import nisp.NISP$;
 import nisp.NISPDatabase;
+import nisp.NISPStats;
 import nisp.SuperShare;
 import org.ergoplatform.appkit.ErgoClient;
 import org.ergoplatform.appkit.ErgoProver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import scala.Option;
 import scala.Tuple2;
-import scala.Tuple3;
 import scala.math.BigInt;
-import scorex.utils.Ints;
 import stratum.data.MiningCandidate;
 import stratum.data.Options;
 import stratum.data.ShareData;
 import stratum.data.Success;
-import org.bouncycastle.util.encoders.Hex;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.ConnectException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -35,10 +35,19 @@ public class Pool {
     private final Logger logger = LoggerFactory.getLogger("StratumPool");
     private boolean useCollateral = false;
     private ErgoClient client = null;
-    private String pk = null;
+    // Written while fetching templates, read by the solution listener on share verifier threads
+    private volatile String pk = null;
     private ErgoProver prover = null;
     private String apiKey = null;
     private boolean reducedShareMessages = false;
+	private SolutionSubmitter solutionSubmitter;
+	private CollateralRetriever retriever;
+	private CollateralPool collateralPool;
+	private final ExecutorService templateRefresher = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "template-refresh");
+		t.setDaemon(true);
+		return t;
+	});
 	public Pool(Options options, ErgoStratumServer server) {
 
 		this.options = options;
@@ -62,6 +71,15 @@ public class Pool {
 
     }
 
+	/**
+	 * @return The NISP store from the options, or one opened on first use when running without one
+	 */
+	private synchronized NISPDatabase nispDatabase() {
+		if (options.nispDatabase == null)
+			options.nispDatabase = new NISPDatabase();
+		return options.nispDatabase;
+	}
+
 	public void start() throws IOException {
 		nodeInterface = new NodeInterface(options.nodeApiUrl);
 		if (!nodeInterface.isOnline())
@@ -69,6 +87,8 @@ public class Pool {
 		JSONObject info = nodeInterface.info();
 		options.data.protocolVersion = info.getJSONObject("parameters").getInt("blockVersion");
 		options.data.chainDifficulty = info.getBigInteger("difficulty").multiply(BigInteger.valueOf(options.difficultyMultiplier));
+		startSolutionSubmitter();
+		startCollateralPool();
 		setupJobManager();
 		getBlockTemplate();
 		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
@@ -91,18 +111,29 @@ public class Pool {
         JSONObject info = nodeInterface.info();
         options.data.protocolVersion = info.getJSONObject("parameters").getInt("blockVersion");
         options.data.chainDifficulty = info.getBigInteger("difficulty").multiply(BigInteger.valueOf(options.difficultyMultiplier));
+        startSolutionSubmitter();
+        startCollateralPool();
         setupJobManager();
         getBlockTemplate();
     }
     public void setupJobManager() {
 
+		if (jobManager != null)
+			jobManager.shutdown();
 		jobManager = new JobManager(options);
 
+		// New work and found blocks go through the critical lane, they must never wait behind database writes
 		jobManager.addEventListener(NewBlock.class, e -> {
 			server.broadcastMiningJob(e.blockTemplate);
-		});
+		}, JobManager.Delivery.CRITICAL);
 		jobManager.addEventListener(UpdatedBlock.class, e -> {
 			server.broadcastMiningJob(e.blockTemplate);
+		}, JobManager.Delivery.CRITICAL);
+		// Found blocks skip the event lanes entirely, the solution is queued for sending from the verifying thread
+		jobManager.setSolutionListener((job, nonce) -> {
+			solutionSubmitter.submit(nonce, pk);
+			// Miners should stop hashing on a solved template as soon as the node has the next one
+			templateRefresher.execute(this::refreshTemplate);
 		});
 		jobManager.addEventListener(Share.class, e -> {
 			ShareData shareData = e.shareData;
@@ -110,32 +141,26 @@ public class Pool {
 			//System.out.println("share: " + shareData.difficulty());
 			if (isValidShare) {
                 Success successfulShare = ((Success) shareData);
-                if(successfulShare.isBlock) {
-                    submitBlock(shareData, e.nonce);
-                    if (getBlockTemplate())
-                        logger.info("New block found after submission!");
-                }
                 if(successfulShare.isSuperShare) {
                     try {
                         SuperShare share = SuperShare.fromCandidate(e.nonce, successfulShare.candidate);
                         logger.info("Saving super share for block {}", share.getHeight());
-                        NISPDatabase nispDB = new NISPDatabase();
+                        NISPDatabase nispDB = nispDatabase();
                         long score = LFSMHelpers.convertTauOrScore(BigInt.apply(successfulShare.difficulty)).longValue();
                         boolean success = nispDB.addNISP(share.getHeight(), score, share);
                         if (success) {
                             logger.info("Successfully saved super share");
-                            logger.info("NISP-DB: {} entries, lastHeight: {}, currentHeight: {}",
-                                    nispDB.size(), // TODO: Potentially expensive call, consider removing later
-                                    Ints.fromByteArray(nispDB.lastHeight().get()),
-                                    Ints.fromByteArray(nispDB.currentHeight().get())
-                            );
+                            NISPStats stats = nispDB.stats();
+                            logger.info("NISP-DB: {} entries, {} shares, {} bytes, minHeight: {}, maxHeight: {}",
+                                    stats.entries(), stats.shares(), stats.bytes(),
+                                    stats.minHeight(), stats.maxHeight());
                         } else {
                             // Failure to save super-share directly affects payments,
                             // and should be treated as a critical error
                             throw new RuntimeException("Failed to save super share to NISP database");
                         }
                     } catch (Exception ex) {
-                        if(ex.getMessage().contains("merkle leaf for collateral")){
+                        if(ex.getMessage() != null && ex.getMessage().contains("merkle leaf for collateral")){
                             // TODO: Fix merkle leaf error
                             logger.warn("Skipped super share due to non-matching merkle leaf");
                         }else{
@@ -145,16 +170,60 @@ public class Pool {
                 }
 
 			}
+		}, JobManager.Delivery.BACKGROUND);
+	}
+
+	private void startSolutionSubmitter() {
+		if (solutionSubmitter != null)
+			solutionSubmitter.stop();
+		solutionSubmitter = new SolutionSubmitter(nodeInterface, options.solutionDeadline, (nonce, accepted) -> {
+			if (accepted)
+				templateRefresher.execute(this::awaitNextTemplate);
 		});
 	}
 
-    public void submitBlock(ShareData shareData, byte[] nonce) {
-        logger.info("Submitted block with nonce: {}", Hex.toHexString(nonce));
-		nodeInterface.sendSolution(Hex.toHexString(nonce), pk);
+	private void startCollateralPool() {
+		if (!useCollateral)
+			return;
+		if (collateralPool != null)
+			collateralPool.stop();
+		retriever = new CollateralRetriever(client, prover);
+		collateralPool = new CollateralPool(retriever, nodeInterface, options.collateralPoolSize);
+		collateralPool.start(options.blockRefreshInterval);
+	}
+
+	private void refreshTemplate() {
+		try {
+			if (getBlockTemplate())
+				logger.info("New block found after submission!");
+		} catch (Exception e) {
+			logger.warn("Speculative template refresh failed: {}", e.getMessage());
+		}
+	}
 
+	/**
+	 * The node only builds the next candidate once it has applied our block, poll quickly until it shows up
+	 */
+	private void awaitNextTemplate() {
+		long delay = 25;
+		for (int attempt = 0; attempt < 8; attempt++) {
+			try {
+				if (getBlockTemplate()) {
+					logger.info("Rolled over to next template after accepted solution");
+					return;
+				}
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				logger.warn("Template refresh after solution failed: {}", e.getMessage());
+			}
+			delay *= 2;
+		}
 	}
 
-    public boolean getBlockTemplate() {
+    public synchronized boolean getBlockTemplate() {
         MiningCandidate candidate = null;
         boolean usedCollateral = useCollateral;
         if(!useCollateral) {
@@ -165,13 +234,24 @@ public class Pool {
         }else{
             try {
                 //TODO If script fails on node-side, does pk get reset?
-                CollateralRetriever retriever = new CollateralRetriever(client, prover);
-                Tuple3<String, String, String> tuple = retriever.getCollateral();
-                candidate = MiningCandidate.fromJson(
-                        nodeInterface.miningCandidate(true, tuple._2(), apiKey),
-                        options.data.protocolVersion, tuple._1()
-                        // unused
-                );
+                // Normally ready from the background pool, only sign here before the first refresh finishes
+                Option<PreparedCollateral> ready = collateralPool.take();
+                PreparedCollateral collateral = ready.isDefined() ? ready.get() : retriever.prepareCollateral(1).head();
+                try {
+                    candidate = MiningCandidate.fromJson(
+                            nodeInterface.miningCandidate(true, collateral.txJson(), apiKey),
+                            options.data.protocolVersion, collateral.txId()
+                            // unused
+                    );
+                } catch (RuntimeException e) {
+                    // Most likely the input was spent since the transaction was signed
+                    collateralPool.invalidate(collateral.inputId());
+                    throw e;
+                }
+                if (candidate.height != collateral.height() + 1) {
+                    logger.info("Collateral was signed at height {} for candidate at {}, refreshing", collateral.height(), candidate.height);
+                    collateralPool.requestRefresh();
+                }
                 pk = candidate.pk; // TODO: Use candidate.pk until collateral is fixed
             } catch (Exception e) {
                 //e.printStackTrace();
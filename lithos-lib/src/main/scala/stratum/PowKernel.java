@@ -0,0 +1,253 @@
+package stratum;
+
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sigma.pow.Autolykos2PowValidation;
+
+import java.math.BigInteger;
+
+/**
+ * Autolykos v2 share verification for a single job. Everything that only depends on the job (N, height bytes,
+ * message and the block/share/super share targets) is computed once when the template is created, so checking
+ * a share only hashes the nonce and compares fixed-width 256-bit values held as four longs.
+ * <p>
+ * Hits are computed with reusable per-thread digests and buffers instead of
+ * {@link Autolykos2PowValidation#hitForVersion2ForMessageWithChecks}, which allocates a BigInt for every element
+ * it sums. The kernel checks itself against that implementation when first loaded and falls back to it if the
+ * results ever differ.
+ */
+public class PowKernel {
+
+	private static final Logger logger = LoggerFactory.getLogger("PowKernel");
+	private static final int K = 32;
+	private static final byte[] M = JobManager.M;
+	private static final boolean MATCHES_REFERENCE = selfTest();
+
+	private final byte[] msg;
+	private final byte[] heightBytes;
+	private final int n;
+	private final long[] blockTarget;
+	private final long[] shareTarget;
+	private final long[] superShareTarget;
+
+	public PowKernel(byte[] msg, long height, BigInteger blockTarget, BigInteger shareTarget, BigInteger superShareTarget) {
+		this.msg = msg;
+		this.heightBytes = Utils.intBytes((int) height);
+		this.n = JobManager.N(height).intValue();
+		this.blockTarget = toLimbs(blockTarget);
+		this.shareTarget = toLimbs(shareTarget);
+		this.superShareTarget = toLimbs(superShareTarget);
+	}
+
+	/**
+	 * Computes the hit for the given nonce into the calling thread's scratch space
+	 * @return Big-endian limbs of the hit, only valid until this thread calls {@link #hit} again
+	 */
+	public long[] hit(byte[] nonce) {
+		Scratch s = SCRATCH.get();
+		if (!MATCHES_REFERENCE) {
+			toLimbs(referenceHit(nonce), s.hit);
+			return s.hit;
+		}
+		return hit(nonce, s);
+	}
+
+	private long[] hit(byte[] nonce, Scratch s) {
+		if (nonce.length != 8)
+			throw new IllegalArgumentException("nonce must be 8 bytes");
+		Blake2bDigest digest = s.digest;
+		byte[] out = s.digestOut;
+
+		// i = last 8 bytes of H(msg | nonce) mod N
+		digest.update(msg, 0, msg.length);
+		digest.update(nonce, 0, 8);
+		digest.doFinal(out, 0);
+		long i = Long.remainderUnsigned(readLong(out, 24), n);
+		writeInt(s.index, (int) i);
+
+		// seed = H(i | h | M) without its first byte, followed by msg and nonce
+		digest.update(s.index, 0, 4);
+		digest.update(heightBytes, 0, 4);
+		digest.update(M, 0, M.length);
+		digest.doFinal(out, 0);
+		digest.update(out, 1, 31);
+		digest.update(msg, 0, msg.length);
+		digest.update(nonce, 0, 8);
+		digest.doFinal(s.indexHash, 0);
+		System.arraycopy(s.indexHash, 0, s.indexHash, 32, 3);
+
+		// Sum of the K elements H(j | h | M) without their first byte, at most 253 bits so it fits in four limbs
+		long[] sum = s.sum;
+		sum[0] = sum[1] = sum[2] = sum[3] = 0;
+		for (int k = 0; k < K; k++) {
+			int index = (int) Long.remainderUnsigned(readInt(s.indexHash, k) & 0xFFFFFFFFL, n);
+			writeInt(s.index, index);
+			digest.update(s.index, 0, 4);
+			digest.update(heightBytes, 0, 4);
+			digest.update(M, 0, M.length);
+			digest.doFinal(out, 0);
+			out[0] = 0;
+			add(sum, out);
+		}
+
+		for (int k = 0; k < 4; k++)
+			writeLong(s.sumBytes, k * 8, sum[k]);
+		digest.update(s.sumBytes, 0, 32);
+		digest.doFinal(out, 0);
+		for (int k = 0; k < 4; k++)
+			s.hit[k] = readLong(out, k * 8);
+		return s.hit;
+	}
+
+	public boolean isBlock(long[] hit) {
+		return compare(hit, blockTarget) <= 0;
+	}
+
+	public boolean meetsShareTarget(long[] hit) {
+		return compare(hit, shareTarget) <= 0;
+	}
+
+	/**
+	 * Checks the hit against the share target divided by 2^shift, the target of a miner on a higher difficulty
+	 */
+	public boolean meetsShareTarget(long[] hit, int shift) {
+		if (shift <= 0)
+			return meetsShareTarget(hit);
+		shift = Math.min(shift, 256);
+		int words = shift >>> 6;
+		int bits = shift & 63;
+		for (int k = 0; k < 4; k++) {
+			int source = k - words;
+			long limb = 0;
+			if (source >= 0 && source < 4) {
+				limb = shareTarget[source] >>> bits;
+				if (bits != 0 && source > 0)
+					limb |= shareTarget[source - 1] << (64 - bits);
+			}
+			int c = Long.compareUnsigned(hit[k], limb);
+			if (c != 0) return c < 0;
+		}
+		return true;
+	}
+
+	public boolean isSuperShare(long[] hit) {
+		return compare(hit, superShareTarget) <= 0;
+	}
+
+	/**
+	 * Recomputes the hit with {@link Autolykos2PowValidation}, used to confirm shares that would end up on chain
+	 */
+	public BigInteger referenceHit(byte[] nonce) {
+		return Autolykos2PowValidation.hitForVersion2ForMessageWithChecks(K, msg, nonce, heightBytes, n).bigInteger();
+	}
+
+	public static BigInteger toBigInteger(long[] limbs) {
+		byte[] bytes = new byte[32];
+		for (int k = 0; k < 4; k++)
+			writeLong(bytes, k * 8, limbs[k]);
+		return new BigInteger(1, bytes);
+	}
+
+	/**
+	 * Big-endian limbs of the given target. Targets at or above 2^256 (e.g. the stratum maximum) are clamped, every
+	 * hit is below them either way. A missing target is treated as zero so nothing meets it.
+	 */
+	static long[] toLimbs(BigInteger value) {
+		long[] limbs = new long[4];
+		toLimbs(value, limbs);
+		return limbs;
+	}
+
+	private static void toLimbs(BigInteger value, long[] limbs) {
+		if (value == null) {
+			limbs[0] = limbs[1] = limbs[2] = limbs[3] = 0;
+			return;
+		}
+		if (value.signum() < 0)
+			throw new IllegalArgumentException("target must not be negative");
+		if (value.bitLength() > 256) {
+			limbs[0] = limbs[1] = limbs[2] = limbs[3] = -1L;
+			return;
+		}
+		for (int k = 0; k < 4; k++)
+			limbs[k] = value.shiftRight(64 * (3 - k)).longValue();
+	}
+
+	private static int compare(long[] a, long[] b) {
+		for (int k = 0; k < 4; k++) {
+			int c = Long.compareUnsigned(a[k], b[k]);
+			if (c != 0) return c;
+		}
+		return 0;
+	}
+
+	private static void add(long[] sum, byte[] value) {
+		long carry = 0;
+		for (int k = 3; k >= 0; k--) {
+			long v = readLong(value, k * 8);
+			long partial = sum[k] + v;
+			long result = partial + carry;
+			carry = (Long.compareUnsigned(partial, v) < 0 || Long.compareUnsigned(result, partial) < 0) ? 1 : 0;
+			sum[k] = result;
+		}
+	}
+
+	private static long readLong(byte[] b, int off) {
+		long v = 0;
+		for (int k = 0; k < 8; k++)
+			v = (v << 8) | (b[off + k] & 0xFF);
+		return v;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+
+	private static void writeLong(byte[] b, int off, long v) {
+		for (int k = 7; k >= 0; k--) {
+			b[off + k] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	private static void writeInt(byte[] b, int v) {
+		b[0] = (byte) (v >> 24);
+		b[1] = (byte) (v >> 16);
+		b[2] = (byte) (v >> 8);
+		b[3] = (byte) v;
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	private static class Scratch {
+		final Blake2bDigest digest = new Blake2bDigest(256);
+		final byte[] digestOut = new byte[32];
+		final byte[] index = new byte[4];
+		// Index hash extended by its first 3 bytes so all K indexes can be read as 4 byte windows
+		final byte[] indexHash = new byte[35];
+		final byte[] sumBytes = new byte[32];
+		final long[] sum = new long[4];
+		final long[] hit = new long[4];
+	}
+
+	private static boolean selfTest() {
+		try {
+			byte[] msg = Utils.blake2b256(new byte[] {1, 2, 3});
+			byte[] nonce = Utils.longBytes(0x0123456789abcdefL);
+			long height = 1_000_000;
+			BigInteger expected = Autolykos2PowValidation.hitForVersion2ForMessageWithChecks(K, msg, nonce,
+					Utils.intBytes((int) height), JobManager.N(height).intValue()).bigInteger();
+			PowKernel kernel = new PowKernel(msg, height, BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO);
+			BigInteger actual = toBigInteger(kernel.hit(nonce, new Scratch()));
+			if (!expected.equals(actual)) {
+				logger.error("PoW kernel disagrees with reference implementation, falling back to it for all shares");
+				return false;
+			}
+			return true;
+		} catch (Throwable e) {
+			logger.error("PoW kernel self test failed, falling back to reference implementation", e);
+			return false;
+		}
+	}
+}
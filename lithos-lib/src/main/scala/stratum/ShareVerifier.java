@@ -0,0 +1,78 @@
+package stratum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies submitted shares away from the connection threads. Submissions go into a bounded queue drained by a
+ * fixed pool of verification workers. When the queue is full the share is rejected right away instead of making
+ * the submitting connection wait, so a flood of shares cannot hold up subscribe/authorize traffic.
+ */
+public class ShareVerifier {
+
+	public static final int OVERLOADED = 20;
+
+	private final Logger logger = LoggerFactory.getLogger("ShareVerifier");
+	private final ErgoStratumServer server;
+	private final ThreadPoolExecutor workers;
+	private final AtomicLong rejected = new AtomicLong();
+
+	public ShareVerifier(ErgoStratumServer server, int workerThreads, int queueCapacity) {
+		this.server = server;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, "share-verifier-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+		logger.info("Verifying shares on {} threads with a queue of {} submissions", workerThreads, queueCapacity);
+	}
+
+	/**
+	 * Queues a share for verification
+	 * @return Future completed with the result of {@link JobManager#processShare}, or completed exceptionally
+	 * with a {@link JobManager.ProcessingException} if the share was invalid or could not be queued
+	 */
+	public CompletableFuture<byte[]> verify(String jobId, BigInteger difficulty, byte[] extraNonce1, byte[] extraNonce2,
+											String nTime, String ipAddress, int port, String workerName) {
+		CompletableFuture<byte[]> result = new CompletableFuture<>();
+		try {
+			workers.execute(() -> {
+				try {
+					result.complete(server.pool.jobManager.processShare(jobId, difficulty, extraNonce1, extraNonce2,
+							nTime, ipAddress, port, workerName));
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			long total = rejected.incrementAndGet();
+			if (total % 1000 == 1)
+				logger.warn("Share queue is full, rejected {} shares so far", total);
+			result.completeExceptionally(new JobManager.ProcessingException(OVERLOADED, "server busy, share rejected"));
+		}
+		return result;
+	}
+
+	public int getQueuedShares() {
+		return workers.getQueue().size();
+	}
+
+	public long getRejectedShares() {
+		return rejected.get();
+	}
+
+	public void stop() {
+		workers.shutdown();
+	}
+}
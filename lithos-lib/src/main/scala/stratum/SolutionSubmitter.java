@@ -0,0 +1,156 @@
+package stratum;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends block solutions to the node on a dedicated thread that does nothing else, so a found block never waits
+ * behind share bookkeeping or template refreshes. Failed sends are retried until a deadline, and every solution's
+ * outcome is logged with the time from detection to the node's answer.
+ */
+public class SolutionSubmitter {
+
+	public interface Outcome {
+		void onSolutionResult(byte[] nonce, boolean accepted);
+	}
+
+	private static class Solution {
+		final byte[] nonce;
+		final String pk;
+		final long detectedAt;
+
+		Solution(byte[] nonce, String pk, long detectedAt) {
+			this.nonce = nonce;
+			this.pk = pk;
+			this.detectedAt = detectedAt;
+		}
+	}
+
+	private static final long FIRST_RETRY_DELAY = 50; // ms, doubled after each failed attempt
+	private static final long MAX_RETRY_DELAY = 1000;
+
+	private final Logger logger = LoggerFactory.getLogger("SolutionSubmitter");
+	private final NodeInterface nodeInterface;
+	private final long deadline;
+	private final Outcome outcome;
+	private final LinkedBlockingQueue<Solution> solutions = new LinkedBlockingQueue<>();
+	private final Thread thread;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long lastLatencyMicros = -1;
+
+	/**
+	 * @param deadline Time in ms after detection during which a solution is retried
+	 * @param outcome Called on the submitter thread once each solution is accepted or given up on
+	 */
+	public SolutionSubmitter(NodeInterface nodeInterface, long deadline, Outcome outcome) {
+		this.nodeInterface = nodeInterface;
+		this.deadline = deadline;
+		this.outcome = outcome;
+		this.thread = new Thread(this::run, "solution-submitter");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Queues a solution, returning immediately
+	 */
+	public void submit(byte[] nonce, String pk) {
+		solutions.add(new Solution(nonce, pk, System.nanoTime()));
+	}
+
+	private void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			Solution solution;
+			try {
+				solution = solutions.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			send(solution);
+		}
+	}
+
+	private void send(Solution solution) {
+		String nonce = Hex.toHexString(solution.nonce);
+		long giveUpAt = solution.detectedAt + TimeUnit.MILLISECONDS.toNanos(deadline);
+		long retryDelay = FIRST_RETRY_DELAY;
+		int attempts = 0;
+		submitted.incrementAndGet();
+		while (true) {
+			attempts++;
+			long remaining = giveUpAt - System.nanoTime();
+			int status = -1;
+			try {
+				status = nodeInterface.postSolution(nonce, solution.pk, Duration.ofNanos(Math.max(remaining, 1)));
+			} catch (RuntimeException e) {
+				logger.warn("Attempt {} to send solution {} failed: {}", attempts, nonce, e.getMessage());
+			}
+			long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - solution.detectedAt);
+			if (status == 200) {
+				accepted.incrementAndGet();
+				lastLatencyMicros = latency;
+				logger.info("Node accepted solution {} after {} attempt(s), {} us after detection", nonce, attempts, latency);
+				notifyOutcome(solution, true);
+				return;
+			}
+			// The node checked and refused it, only transport errors and server faults are worth retrying
+			boolean rejected = status >= 400 && status < 500;
+			if (rejected || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay) >= giveUpAt) {
+				failed.incrementAndGet();
+				lastLatencyMicros = latency;
+				logger.error("Giving up on solution {} after {} attempt(s) with status {}, {} us after detection",
+						nonce, attempts, status, latency);
+				notifyOutcome(solution, false);
+				return;
+			}
+			try {
+				Thread.sleep(retryDelay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+		}
+	}
+
+	private void notifyOutcome(Solution solution, boolean wasAccepted) {
+		try {
+			outcome.onSolutionResult(solution.nonce, wasAccepted);
+		} catch (RuntimeException e) {
+			logger.error("Error while handling solution result", e);
+		}
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return Microseconds from detection to the node's answer for the last solution, or -1 if none was sent yet
+	 */
+	public long getLastLatencyMicros() {
+		return lastLatencyMicros;
+	}
+
+	public void stop() {
+		thread.interrupt();
+	}
+}
@@ -0,0 +1,88 @@
+package stratum;
+
+import stratum.data.Options;
+
+/**
+ * Variable share difficulty for a single miner. Difficulty is a power of two applied on top of the job's share
+ * target (share target = tau / 2^shift). Miners read the target from b of their mining.notify, so every connection
+ * is sent jobs at its own target, and mining.set_difficulty announces the same difficulty. After each retarget
+ * window the shift moves toward the configured share interval based on the shares actually received.
+ * <p>
+ * The current job is resent when the difficulty changes, but shares already in flight were mined at the previous
+ * target, so for a short grace period shares meeting the previous difficulty are still accepted.
+ */
+public class VarDiff {
+
+	// Never move more than 4x in one retarget, a burst of lucky shares should not overshoot
+	private static final int MAX_STEP = 2;
+	// Share interval may drift this far from the target before retargeting
+	private static final double VARIANCE = 0.3;
+
+	private final long targetInterval;
+	private final long retargetInterval;
+	private final int minShift;
+	private final int maxShift;
+
+	private int shift;
+	private int previousShift;
+	private long graceUntil;
+	private long windowStart;
+	private int windowShares;
+
+	public VarDiff(Options options, long now) {
+		this.targetInterval = options.vardiffTargetInterval;
+		this.retargetInterval = options.vardiffRetargetInterval;
+		this.minShift = shiftOf(options.vardiffMinDifficulty);
+		this.maxShift = Math.max(minShift, shiftOf(options.vardiffMaxDifficulty));
+		this.shift = minShift;
+		this.previousShift = minShift;
+		this.windowStart = now;
+	}
+
+	/**
+	 * @return The difficulty shift shares are currently checked against
+	 */
+	public synchronized int acceptedShift(long now) {
+		return now < graceUntil ? Math.min(shift, previousShift) : shift;
+	}
+
+	public synchronized int getShift() {
+		return shift;
+	}
+
+	/**
+	 * Records an accepted share and retargets once the window has passed
+	 * @return true if the difficulty changed and must be sent to the miner
+	 */
+	public synchronized boolean onShare(long now) {
+		windowShares++;
+		long elapsed = now - windowStart;
+		// Retarget early if shares arrive far faster than wanted, a big farm starting at minimum difficulty would
+		// otherwise flood the pool for the whole window
+		if (elapsed < retargetInterval && windowShares < 4 * Math.max(1, retargetInterval / targetInterval))
+			return false;
+
+		double interval = elapsed / (double) windowShares;
+		windowStart = now;
+		windowShares = 0;
+		if (interval > targetInterval * (1 - VARIANCE) && interval < targetInterval * (1 + VARIANCE))
+			return false;
+
+		// Share rate scales with 1 / difficulty, so the wanted change is log2(target / observed)
+		int step = (int) Math.round(Math.log(targetInterval / Math.max(1.0, interval)) / Math.log(2));
+		step = Math.max(-MAX_STEP, Math.min(MAX_STEP, step));
+		int next = Math.max(minShift, Math.min(maxShift, shift + step));
+		if (next == shift)
+			return false;
+		previousShift = shift;
+		shift = next;
+		graceUntil = now + 2 * targetInterval;
+		return true;
+	}
+
+	private static int shiftOf(long difficulty) {
+		if (difficulty < 1)
+			throw new IllegalArgumentException("vardiff difficulty must be at least 1");
+		return 63 - Long.numberOfLeadingZeros(difficulty);
+	}
+}
@@ -1,5 +1,7 @@
 package stratum.data;
 
+import nisp.NISPDatabase;
+
 import java.math.BigInteger;
 
 public class Options {
@@ -25,4 +27,16 @@ public class Options {
 	public String nodeApiUrl;
 	public Data data;
 	public BigInteger tau;
+	public NISPDatabase nispDatabase; // Shared store for super shares, the pool opens its own if left null
+	public int shareVerifierThreads = Runtime.getRuntime().availableProcessors();
+	public int shareQueueCapacity = 4096; // Shares waiting for verification before new ones are rejected
+	public int jobsPerHeight = 4; // Templates at the chain tip that still accept shares after being replaced
+	public int maxTrackedShares = 1 << 16; // Upper bound on nonces remembered per job for duplicate detection
+	public int collateralPoolSize = 3; // Signed collateral transactions kept ready for the current height
+	public long solutionDeadline = 10000; // ms after detection a block solution is retried for
+	public boolean vardiffEnabled = false; // Per-miner difficulty, off until proven on real rigs
+	public long vardiffTargetInterval = 10000; // ms between shares each miner is steered toward
+	public long vardiffRetargetInterval = 60000; // ms
+	public long vardiffMinDifficulty = 1; // Multiples of tau, rounded down to powers of two
+	public long vardiffMaxDifficulty = 1 << 20;
 }
@@ -16,6 +16,13 @@ public class Announcement {
 	}
 
 	public static AnnouncementMessage miningJob(BlockTemplate blockTemplate) {
-		return new AnnouncementMessage("mining.notify", blockTemplate::getJobParams);
+		return miningJob(blockTemplate, 0);
+	}
+
+	/**
+	 * @param shift Vardiff shift of the receiving connection, its share target is tau / 2^shift
+	 */
+	public static AnnouncementMessage miningJob(BlockTemplate blockTemplate, int shift) {
+		return new AnnouncementMessage("mining.notify", () -> blockTemplate.getJobParams(shift));
 	}
 }
@@ -9,6 +9,8 @@ import org.json.JSONObject;
  */
 public class AnnouncementMessage extends ResponseMessage {
 	protected final String method;
+	// Announcements are broadcast to every connection, so the JSON is only built once per message
+	private volatile JSONObject json;
 
 	public AnnouncementMessage(String method, Result params, String error) {
 		super("", params, error);
@@ -22,6 +24,8 @@ public class AnnouncementMessage extends ResponseMessage {
 
 	@Override
 	public JSONObject toJson() {
+		JSONObject cached = json;
+		if (cached != null) return cached;
 		JSONObject obj = new JSONObject();
 
 		Result result = this.getResult();
@@ -31,6 +35,7 @@ public class AnnouncementMessage extends ResponseMessage {
 		//obj.put(JSON_STRATUM_KEY_ERROR, Objects.requireNonNullElse(error, JSONObject.NULL));
 		obj.put("params", (result != null) ? result.toJson() : JSONObject.NULL);
 
+		json = obj;
 		return obj;
 	}
 }
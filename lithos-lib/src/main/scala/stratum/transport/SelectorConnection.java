@@ -0,0 +1,222 @@
+package stratum.transport;
+
+import com.redbottledesign.bitcoin.rpc.stratum.MalformedStratumMessageException;
+import com.redbottledesign.bitcoin.rpc.stratum.message.ResponseMessage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stratum.ErgoStratumServer;
+import stratum.MinerSession;
+import stratum.message.Requests;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single miner connection on the {@link SelectorTransport}. Reads and writes happen on the selector thread,
+ * while requests are handled on the transport's worker pool, one at a time per connection so that responses
+ * keep the order of their requests.
+ */
+public class SelectorConnection {
+
+	// Stratum messages are a few hundred bytes, anything larger than this is not a miner
+	private static final int MAX_LINE_LENGTH = 16 * 1024;
+	// Messages that may wait on a connection before it is treated as dead and dropped
+	static final int MAX_PENDING_WRITES = 256;
+
+	private final Logger logger = LoggerFactory.getLogger("SelectorConnection");
+	private final SelectorTransport transport;
+	private final long connectionId;
+	private final SocketChannel channel;
+
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+	private final Queue<String> inbound = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean handling = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private SelectionKey key;
+	private MinerSession session;
+	private InetSocketAddress remoteAddress;
+
+	// Partial line carried between reads, only touched by the selector thread
+	private byte[] lineBuffer = new byte[0];
+	private int lineLength = 0;
+	// ms of the last read with data, or of the accept before any, only touched by the selector thread
+	private long lastRead;
+
+	SelectorConnection(SelectorTransport transport, long connectionId, SocketChannel channel) {
+		this.transport = transport;
+		this.connectionId = connectionId;
+		this.channel = channel;
+	}
+
+	void attach(ErgoStratumServer server, SelectionKey key, InetSocketAddress remoteAddress) {
+		this.key = key;
+		this.remoteAddress = remoteAddress;
+		this.lastRead = System.currentTimeMillis();
+		this.session = server.newSession(this::sendResponse, remoteAddress);
+	}
+
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * @return Vardiff shift of the connection's session, 0 until it is attached
+	 */
+	int getShift() {
+		return session != null ? session.getShift() : 0;
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * @return Whether nothing was read from the miner for longer than the timeout, since accepting it or since its
+	 *         last message
+	 */
+	boolean isIdle(long now, long timeout) {
+		return now - lastRead > timeout;
+	}
+
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	public void sendResponse(ResponseMessage message) throws IOException {
+		String line = message.toJson().toString() + "\n";
+		if (enqueue(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8))))
+			transport.requestWrite(this, true);
+	}
+
+	/**
+	 * Queues already encoded bytes for writing. The buffer must not be shared with other connections unless it
+	 * is a {@link ByteBuffer#duplicate()} of a read-only buffer.
+	 * @return Whether the selector must be asked to watch this connection for writability
+	 */
+	boolean enqueue(ByteBuffer encoded) throws IOException {
+		if (closed.get())
+			throw new IOException("Connection " + connectionId + " is closed");
+		if (pendingWrites.get() >= MAX_PENDING_WRITES) {
+			logger.warn("Dropping connection {} from {} after {} unsent messages", connectionId, remoteAddress, MAX_PENDING_WRITES);
+			close();
+			throw new IOException("Connection " + connectionId + " is too slow to keep up");
+		}
+		outbound.add(encoded);
+		// The selector keeps writing until the count drops to zero, so only the first queued message needs to
+		// register write interest. Adding before counting guarantees the selector sees it before then.
+		return pendingWrites.incrementAndGet() == 1;
+	}
+
+	void onReadable() throws IOException {
+		ByteBuffer buffer = transport.readBuffer;
+		buffer.clear();
+		int read = channel.read(buffer);
+		if (read < 0) {
+			close();
+			return;
+		}
+		if (read > 0)
+			lastRead = System.currentTimeMillis();
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				String line = new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8).trim();
+				lineLength = 0;
+				if (!line.isEmpty()) inbound.add(line);
+			} else {
+				if (lineLength == MAX_LINE_LENGTH) {
+					logger.warn("Closing connection {} after oversized stratum message", connectionId);
+					close();
+					return;
+				}
+				if (lineLength == lineBuffer.length)
+					lineBuffer = Arrays.copyOf(lineBuffer, Math.max(256, lineBuffer.length * 2));
+				lineBuffer[lineLength++] = b;
+			}
+		}
+		scheduleHandling();
+	}
+
+	void onWritable() throws IOException {
+		ByteBuffer next;
+		while ((next = outbound.peek()) != null) {
+			channel.write(next);
+			if (next.hasRemaining()) return;
+			outbound.poll();
+			pendingWrites.decrementAndGet();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	void enableWriteInterest() {
+		if (key != null && key.isValid())
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void scheduleHandling() {
+		if (!inbound.isEmpty() && handling.compareAndSet(false, true))
+			transport.dispatch(this::handleInbound);
+	}
+
+	private void handleInbound() {
+		String line;
+		while ((line = inbound.poll()) != null) {
+			if (closed.get()) break;
+			handle(line);
+		}
+		handling.set(false);
+		// Lines may have arrived between the last poll and releasing the flag
+		if (!closed.get()) scheduleHandling();
+	}
+
+	private void handle(String line) {
+		try {
+			JSONObject json = new JSONObject(line);
+			String method = json.optString("method", "");
+			switch (method) {
+				case Requests.Subscribe.NAME:
+					session.onSubscribe(new Requests.Subscribe(json));
+					break;
+				case Requests.Authorize.NAME:
+					session.onAuthorize(new Requests.Authorize(json));
+					break;
+				case Requests.Submit.NAME:
+					session.onSubmit(new Requests.Submit(json));
+					break;
+				default:
+					logger.debug("Ignoring unsupported stratum method '{}' from connection {}", method, connectionId);
+			}
+		} catch (JSONException | MalformedStratumMessageException e) {
+			logger.warn("Received malformed stratum message on connection {}: {}", connectionId, e.getMessage());
+		} catch (RuntimeException e) {
+			logger.error("Error while handling stratum request on connection " + connectionId, e);
+		}
+	}
+
+	public void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("Error while closing connection {}", connectionId);
+		}
+		outbound.clear();
+		inbound.clear();
+		transport.remove(this);
+	}
+}
@@ -0,0 +1,220 @@
+package stratum.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stratum.BlockTemplate;
+import stratum.ErgoStratumServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking stratum transport. A single selector thread accepts, reads and writes for every miner, while
+ * parsed requests are handed to a fixed, core-sized worker pool. Thread count stays constant no matter how
+ * many miners are connected, unlike the JStratum transport which parks an input and output thread per socket.
+ * Like JStratum, connections nothing is read from for {@code Options.connectionTimeout} ms are closed.
+ */
+public class SelectorTransport {
+
+	// Longest the selector waits before checking for idle connections, in ms
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private final Logger logger = LoggerFactory.getLogger("SelectorTransport");
+	private final ErgoStratumServer server;
+	private final ConcurrentHashMap<Long, SelectorConnection> connections = new ConcurrentHashMap<>();
+	private final Queue<SelectorConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final AtomicLong connectionIds = new AtomicLong();
+	private final ExecutorService workers;
+	private final int workerThreads;
+	// Only touched by the selector thread, shared by all connections for socket reads
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+	private volatile Selector selector;
+	private ServerSocketChannel serverChannel;
+	private volatile boolean running = false;
+	private long lastSweep;
+
+	public SelectorTransport(ErgoStratumServer server) {
+		this(server, Runtime.getRuntime().availableProcessors());
+	}
+
+	public SelectorTransport(ErgoStratumServer server, int workerThreads) {
+		this.server = server;
+		this.workerThreads = workerThreads;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+			Thread t = new Thread(r, "stratum-worker-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Binds to the given port and runs the selector loop on the calling thread until {@link #stop()} is called
+	 */
+	public void listen(int port) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(new InetSocketAddress(port), 1024);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		logger.info("Selector transport listening on port {} with {} worker threads", port, workerThreads);
+
+		try {
+			lastSweep = System.currentTimeMillis();
+			while (running) {
+				selector.select(SWEEP_INTERVAL);
+				registerPendingWrites();
+				closeIdle();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							SelectorConnection connection = (SelectorConnection) key.attachment();
+							if (key.isReadable()) connection.onReadable();
+							if (key.isValid() && key.isWritable()) connection.onWritable();
+						}
+					} catch (IOException | CancelledKeyException e) {
+						logger.warn("Closing stratum connection after I/O error: {}", e.getMessage());
+						if (key.attachment() instanceof SelectorConnection)
+							((SelectorConnection) key.attachment()).close();
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			logger.info("Selector closed, stopping selector transport");
+		} finally {
+			running = false;
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			long id = connectionIds.incrementAndGet();
+			SelectorConnection connection = new SelectorConnection(this, id, channel);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connection.attach(server, key, (InetSocketAddress) channel.getRemoteAddress());
+			connections.put(id, connection);
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle for longer than the connection timeout, at most once per sweep interval.
+	 * Catches half-open sockets and miners that connect but never subscribe.
+	 */
+	private void closeIdle() {
+		long timeout = server.getOptions().connectionTimeout;
+		long now = System.currentTimeMillis();
+		if (timeout <= 0 || now - lastSweep < SWEEP_INTERVAL) return;
+		lastSweep = now;
+		int closed = 0;
+		for (SelectorConnection connection : connections.values()) {
+			if (connection.isIdle(now, timeout)) {
+				connection.close();
+				closed++;
+			}
+		}
+		if (closed > 0)
+			logger.info("Closed {} stratum connections idle for over {} ms", closed, timeout);
+	}
+
+	private void registerPendingWrites() {
+		SelectorConnection connection;
+		while ((connection = pendingWrites.poll()) != null) {
+			connection.enableWriteInterest();
+		}
+	}
+
+	/**
+	 * Called from worker threads once a connection has queued output, so the selector starts watching for
+	 * writability on its behalf
+	 */
+	void requestWrite(SelectorConnection connection, boolean wakeup) {
+		pendingWrites.add(connection);
+		Selector s = selector;
+		if (wakeup && s != null) s.wakeup();
+	}
+
+	void dispatch(Runnable task) {
+		workers.execute(task);
+	}
+
+	void remove(SelectorConnection connection) {
+		connections.remove(connection.getConnectionId());
+	}
+
+	public Collection<SelectorConnection> getConnections() {
+		return connections.values();
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Queues the template's mining.notify on every connection and wakes the selector once. Connections at the same
+	 * vardiff shift share one encoded line. Connections whose backlog is full are dropped instead of holding up the
+	 * others.
+	 */
+	public void broadcast(BlockTemplate template) {
+		int dropped = 0;
+		for (SelectorConnection connection : connections.values()) {
+			try {
+				if (connection.enqueue(template.getNotification(connection.getShift())))
+					requestWrite(connection, false);
+			} catch (IOException e) {
+				dropped++;
+			}
+		}
+		Selector s = selector;
+		if (s != null) s.wakeup();
+		if (dropped > 0)
+			logger.warn("Dropped {} slow or closed connections while broadcasting", dropped);
+	}
+
+	public void stop() {
+		running = false;
+		for (SelectorConnection connection : connections.values()) {
+			connection.close();
+		}
+		try {
+			if (serverChannel != null) serverChannel.close();
+			if (selector != null) selector.close();
+		} catch (IOException e) {
+			logger.warn("Error while closing selector transport", e);
+		}
+		workers.shutdown();
+	}
+}
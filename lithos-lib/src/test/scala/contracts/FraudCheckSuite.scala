@@ -0,0 +1,181 @@
+package contracts
+
+import contracts.ContractTestHelpers._
+import evaluation.FraudCheck
+import evaluation.FraudCheck._
+import lfsm.{ContractRegistry, LFSMHelpers}
+import nisp.TransactionProof.LEAF_SIZE
+import nisp.{NISP, NISPGenerator, NISPView, SuperShare}
+import org.ergoplatform.appkit._
+import org.scalatest.funsuite.AnyFunSuite
+import scorex.crypto.hash.Blake2b256
+import scorex.utils.Longs
+import sigma.data.AvlTreeFlags
+import sigma.exceptions.InterpreterException
+import work.lithos.mutations._
+import work.lithos.plasma.PlasmaParameters
+import work.lithos.plasma.collections.PlasmaMap
+
+import java.math.BigInteger
+import scala.util.{Failure, Success, Try}
+
+/**
+ * Checks that `FraudCheck` flags exactly the NISPs the fraud proof contracts accept as fraud. Evaluation only
+ * attempts fraud proofs for flagged conditions, so a condition missed here is never proven on chain.
+ */
+class FraudCheckSuite extends AnyFunSuite{
+
+  // R8 of the evaluation box, shares must be in [evalBlock - NISP_WINDOW, evalBlock]
+  val evalBlock: Long = NISPGenerator.START_HEIGHT + LFSMHelpers.NISP_WINDOW
+  val windowStart: Long = evalBlock - LFSMHelpers.NISP_WINDOW
+  // Every generated share has a hit below the super share threshold of `score`
+  val maxHit: BigInt = LFSMHelpers.TARGET_MAX_LITHOS / LFSMHelpers.NISP_COEFFICIENT
+  val score: Long = (LFSMHelpers.TARGET_MAX_LITHOS / (maxHit * LFSMHelpers.NISP_COEFFICIENT)).toLong
+
+  def mined(height: Long, seed: Long): SuperShare = NISPGenerator.minedShare(height.toInt, seed, maxHit)
+
+  // Ten shares spread over the window, the first at its start and the last at the evaluated block
+  lazy val windowShares: Seq[SuperShare] = (0 until 10).map(i => mined(windowStart + i * 40, i))
+
+  // Highest score whose super share threshold the window shares' largest hit still reaches
+  lazy val tightScore: Long = {
+    val hits = new NISPView(NISP(score, windowShares).serialize).shares.map{
+      s => NISPGenerator.hit(Blake2b256.hash(s.headerBytes.take(PREHEADER_SIZE)), s.header.powSolution.n, s.height)
+    }.toVector
+    (LFSMHelpers.TARGET_MAX_LITHOS / (hits.max * LFSMHelpers.NISP_COEFFICIENT)).toLong
+  }
+
+  def nisp(shares: Seq[SuperShare], nispScore: Long = score): Array[Byte] = NISP(nispScore, shares).serialize
+
+  /**
+   * Share followed by a leaf and the given level count, but no levels. The contracts always read a leaf and read the
+   * level count as a signed byte, while the client's codec reads no leaf for 0 levels and counts up to 255 levels.
+   */
+  def craftedShare(share: SuperShare, numLevels: Byte): Array[Byte] = {
+    share.nBytes ++ share.headerBytes ++ Array(numLevels) ++ new Array[Byte](LEAF_SIZE)
+  }
+
+  def rawNISP(shares: Seq[Array[Byte]]): Array[Byte] = Longs.toByteArray(score) ++ shares.flatten
+
+  /**
+   * Signs a fraud proof transaction for a single miner holding the given NISP
+   * @return Whether the fraud proof contract accepted the NISP as fraud
+   */
+  def provesFraud(ctx: BlockchainContext, fpContract: Contract, nispBytes: Array[Byte]): Boolean = {
+    val miner = getMiners(ctx).head.hashedPropBytes
+    val nispScore = new NISPView(nispBytes).score
+    val tree = PlasmaMap[Array[Byte], Array[Byte]](AvlTreeFlags.AllOperationsAllowed, PlasmaParameters.default)
+    tree.insert(miner -> nispBytes)
+    val copy = tree.copy()
+    copy.prover.generateProof()
+    val lookUp = copy.lookUp(miner)
+    val delete = copy.delete(miner)
+
+    // The evaluation contract is not under test, fraud proofs only read the first input's registers
+    val evalInput = UTXO(Contract.SIGMA_TRUE, ONE_ERG,
+      registers = Seq(
+        tree.ergoValue,
+        ErgoValue.of(1),
+        ErgoValue.of(BigInt(nispScore).bigInteger),
+        ErgoValue.of(evalBlock + LFSMHelpers.HOLDING_PERIOD),
+        ErgoValue.of(evalBlock)
+      )).toDummyInput(ctx)
+    val evalOutput = UTXO(Contract.SIGMA_TRUE, ONE_ERG,
+      registers = Seq(
+        copy.ergoValue,
+        ErgoValue.of(0),
+        ErgoValue.of(BigInteger.ZERO),
+        ErgoValue.of(evalBlock + LFSMHelpers.HOLDING_PERIOD),
+        ErgoValue.of(evalBlock)
+      ))
+    val fpInput = UTXO(fpContract, Parameters.MinFee).toDummyInput(ctx).setCtxVars(
+      ContextVar.of(0.toByte, ErgoValue.of(miner)),
+      ContextVar.of(1.toByte, lookUp.proof.ergoValue),
+      ContextVar.of(2.toByte, delete.proof.ergoValue)
+    )
+
+    val uTx = TxBuilder(ctx)
+      .setInputs(evalInput, fpInput, DUMMY_UTXO.toDummyInput(ctx))
+      .setOutputs(evalOutput)
+      .buildTx(Parameters.MinFee, CHANGE_ADDRESS)
+    Try(getProver(ctx).sign(uTx)) match {
+      case Success(_) => true
+      case Failure(ie: InterpreterException) if ie.getMessage.contains("Script reduced to false") => false
+      case Failure(e) => throw e
+    }
+  }
+
+  /**
+   * Asserts `FraudCheck` returns the expected conditions, and that each contract proves fraud exactly for those
+   */
+  def assertMatchesContracts(nispBytes: Array[Byte], expected: Seq[Condition]): Unit = {
+    assert(FraudCheck.check(nispBytes, evalBlock) == expected)
+    client.execute{
+      ctx =>
+        val contracts = ContractRegistry(ctx)
+        // Other contracts assume a valid size and cannot be evaluated for these NISPs
+        val evaluated = if(expected == Seq(InvalidSize)) Seq(InvalidSize) else FraudCheck.conditions
+        evaluated.foreach {
+          c => assert(provesFraud(ctx, c.contract(contracts), nispBytes) == expected.contains(c), s"for $c")
+        }
+    }
+  }
+
+  test("Valid NISP fails no check"){
+    assertMatchesContracts(nisp(windowShares), Seq.empty)
+  }
+
+  test("Share at the start of the window is valid, one block earlier is not"){
+    assert(windowShares.head.getHeight == windowStart)
+    assertMatchesContracts(nisp(windowShares.updated(0, mined(windowStart - 1, 0))), Seq(NotInWindow))
+  }
+
+  test("Share at the evaluated block is valid, one block later is not"){
+    assert(windowShares.last.getHeight == evalBlock)
+    assertMatchesContracts(nisp(windowShares.updated(9, mined(evalBlock + 1, 9))), Seq(NotInWindow))
+  }
+
+  test("Repeated header is flagged"){
+    assertMatchesContracts(nisp(windowShares.updated(1, windowShares.head)), Seq(NonUniqueHeaders))
+  }
+
+  test("Score at the shares' threshold is valid, one above is not"){
+    assertMatchesContracts(nisp(windowShares, tightScore), Seq.empty)
+    assertMatchesContracts(nisp(windowShares, tightScore + 1), Seq(InvalidDiff))
+  }
+
+  test("Share without super share work is flagged"){
+    val unmined = NISPGenerator.share(windowShares(4).getHeight, 4)
+    assertMatchesContracts(nisp(windowShares.updated(4, unmined)), Seq(InvalidDiff))
+  }
+
+  test("Smallest valid size passes, nine shares do not"){
+    val smallest = windowShares.map(s => NISPGenerator.withLevels(s, 1))
+    assert(nisp(smallest).length == NISP_MIN)
+    assertMatchesContracts(nisp(smallest), Seq.empty)
+    assertMatchesContracts(nisp(smallest.take(9)), Seq(InvalidSize))
+  }
+
+  test("Largest valid size passes, one more level does not"){
+    // 6 * 113 + 4 * 114 levels make exactly NISP_MAX bytes
+    val largest = windowShares.zipWithIndex.map {
+      case (s, i) => NISPGenerator.withLevels(s, if(i < 6) 113 else 114)
+    }
+    assert(nisp(largest).length == NISP_MAX)
+    assertMatchesContracts(nisp(largest), Seq.empty)
+    assertMatchesContracts(nisp(largest.updated(0, NISPGenerator.withLevels(windowShares.head, 114))), Seq(InvalidSize))
+  }
+
+  test("Share with no levels is read with its leaf, like the contracts do"){
+    val shares = windowShares.map(_.serialize)
+    assertMatchesContracts(rawNISP(shares.updated(4, craftedShare(windowShares(4), 0))), Seq.empty)
+    assertMatchesContracts(rawNISP(shares.updated(4, craftedShare(windowShares(3), 0))), Seq(NonUniqueHeaders))
+  }
+
+  test("Share with 128 or more levels is read with a signed level count, like the contracts do"){
+    // 255 levels are read as -1 by the contracts, so the last share ends right after its header
+    val shares = windowShares.map(_.serialize)
+    assertMatchesContracts(rawNISP(shares.updated(9, craftedShare(windowShares(9), -1))), Seq.empty)
+    assertMatchesContracts(rawNISP(shares.updated(9, craftedShare(mined(evalBlock + 1, 9), -1))), Seq(NotInWindow))
+  }
+}
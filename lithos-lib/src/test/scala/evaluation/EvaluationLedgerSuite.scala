@@ -0,0 +1,86 @@
+package evaluation
+
+import evaluation.FraudCheck._
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.io.File
+import java.nio.file.{Files, Path}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.{Comparator, Random}
+
+class EvaluationLedgerSuite extends AnyFunSuite{
+
+  val random = new Random(1262000)
+  def bytes(size: Int): Array[Byte] = {
+    val b = new Array[Byte](size)
+    random.nextBytes(b)
+    b
+  }
+
+  val miner: Array[Byte] = bytes(32)
+  val nisp: Array[Byte] = bytes(2908)
+  val evalBlock = 1262360
+
+  def withLedger(test: (File, EvaluationLedger) => Unit): Unit = {
+    val dir = Files.createTempDirectory("lithos-test-evaluations")
+    val ledger = new EvaluationLedger(dir.toFile)
+    try {
+      test(dir.toFile, ledger)
+    } finally {
+      ledger.close()
+      Files.walk(dir).sorted(Comparator.reverseOrder[Path]()).forEach(p => Files.delete(p))
+    }
+  }
+
+  test("Verdicts survive a reopen"){
+    withLedger{
+      (dir, ledger) =>
+        val valid = bytes(2908)
+        ledger.record(evalBlock, miner, nisp, Seq(NotInWindow, InvalidDiff))
+        ledger.record(evalBlock, miner, valid, Seq.empty)
+        ledger.close()
+
+        val reopened = new EvaluationLedger(dir)
+        try {
+          assert(reopened.verdict(evalBlock, miner, nisp).contains(Seq(NotInWindow, InvalidDiff)))
+          // A NISP that passed every check is not the same as one never checked
+          assert(reopened.verdict(evalBlock, miner, valid).contains(Seq.empty))
+          assert(reopened.verdict(evalBlock + 1, miner, nisp).isEmpty)
+        } finally {
+          reopened.close()
+        }
+    }
+  }
+
+  test("Only NISPs without a verdict are checked"){
+    withLedger{
+      (_, ledger) =>
+        val checks = new AtomicInteger()
+        def check(n: Array[Byte]): Seq[Condition] = {
+          checks.incrementAndGet()
+          Seq(InvalidSize)
+        }
+        assert(ledger.verdicts(evalBlock, Seq(miner -> nisp))(check).map(_._2) == Seq(Seq(InvalidSize)))
+        assert(ledger.verdicts(evalBlock, Seq(miner -> nisp))(check).map(_._2) == Seq(Seq(InvalidSize)))
+        assert(checks.get() == 1)
+
+        // A changed submission from the same miner is checked again
+        ledger.verdicts(evalBlock, Seq(miner -> bytes(2908)))(check)
+        assert(checks.get() == 2)
+    }
+  }
+
+  test("Pruning stops at the given block"){
+    withLedger{
+      (_, ledger) =>
+        Seq(evalBlock - 360, evalBlock - 1, evalBlock, evalBlock + 360).foreach {
+          block => ledger.record(block, miner, nisp, Seq(NonUniqueHeaders))
+        }
+        assert(ledger.prune(evalBlock) == 2)
+        assert(ledger.verdict(evalBlock - 1, miner, nisp).isEmpty)
+        assert(ledger.verdict(evalBlock, miner, nisp).contains(Seq(NonUniqueHeaders)))
+        assert(ledger.verdict(evalBlock + 360, miner, nisp).contains(Seq(NonUniqueHeaders)))
+        assert(ledger.prune(evalBlock) == 0)
+    }
+  }
+}
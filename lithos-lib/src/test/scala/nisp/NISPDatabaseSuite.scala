@@ -0,0 +1,250 @@
+package nisp
+
+import nisp.NISPDatabase._
+import org.iq80.leveldb.Options
+import org.scalatest.funsuite.AnyFunSuite
+import scorex.db.LDBFactory
+import scorex.utils.Ints
+
+import java.io.File
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+
+class NISPDatabaseSuite extends AnyFunSuite{
+
+  // Six heights of four shares each, so a best NISP has to combine three of them
+  val heights: Seq[Int] = (0 until 6).map(i => NISPGenerator.START_HEIGHT + i * 2)
+  val legacyNISPs: Seq[(Int, NISP)] = heights.map(h => h -> NISPGenerator.nisp(h, 4))
+
+  def withDir(test: File => Unit): Unit = {
+    val dir = Files.createTempDirectory("lithos-test-nisp")
+    try {
+      test(dir.toFile)
+    } finally {
+      Files.walk(dir).sorted(Comparator.reverseOrder[Path]()).forEach(p => Files.delete(p))
+    }
+  }
+
+  def withDatabase(dir: File)(test: NISPDatabase => Unit): Unit = {
+    val db = new NISPDatabase(dir)
+    try {
+      test(db)
+    } finally {
+      db.close()
+    }
+  }
+
+  /**
+   * Writes the NISPs the way databases did before shares were stored separately: one key per height holding the
+   * whole NISP, along with both height pointers. The database is then opened, migrating them.
+   */
+  def withLegacyDatabase(test: (File, NISPDatabase) => Unit): Unit = {
+    withDir{
+      dir =>
+        val legacy = LDBFactory.factory.open(dir, new Options())
+        try {
+          legacyNISPs.foreach{ case (h, nisp) => legacy.put(Ints.toByteArray(h), nisp.serialize) }
+          legacy.put(LAST_HEIGHT, Ints.toByteArray(heights.min))
+          legacy.put(CURRENT_HEIGHT, Ints.toByteArray(heights.max))
+        } finally {
+          legacy.close()
+        }
+        withDatabase(dir)(db => test(dir, db))
+    }
+  }
+
+  // NISPs as added through addNISP, with scores that fail some queries and only the last two heights holding 10
+  // shares. Each height starts with a share of the height before, and repeats its own first share at the end.
+  val added: Seq[(Int, Long, Seq[SuperShare])] = {
+    val scores = Seq(1L, 3L, 2L, 3L, 1L, 2L, 3L, 1L).map(_ * NISPGenerator.SCORE)
+    val counts = Seq(3, 4, 2, 6, 1, 5, 11, 12)
+    scores.zip(counts).zipWithIndex.map {
+      case ((score, count), i) =>
+        val height = NISPGenerator.START_HEIGHT + i * 50
+        val shares = NISPGenerator.shares(height, count)
+        val previous = if(i > 0) NISPGenerator.shares(height - 50, 1) else Seq.empty[SuperShare]
+        (height, score, previous ++ shares ++ shares.take(1))
+    }
+  }
+
+  def withAddedNISPs(test: (File, NISPDatabase) => Unit): Unit = {
+    withDir{
+      dir =>
+        withDatabase(dir){
+          db => added.foreach{ case (h, score, shares) => shares.foreach(s => assert(db.addNISP(h, score, s))) }
+        }
+        withDatabase(dir)(db => test(dir, db))
+    }
+  }
+
+  /**
+   * `getBestValidNISP` as it was before the window index, folding over every NISP in the window
+   */
+  def foldBestNISP(stored: Seq[(Int, Long, Seq[SuperShare])], height: Int, score: Long): Option[NISP] = {
+    def makeUnique(shares: Seq[SuperShare]): Seq[SuperShare] = {
+      shares.foldLeft(Seq.empty[SuperShare]){
+        (z, s) => if(z.exists(sh => sh.headerBytes sameElements s.headerBytes)) z else z :+ s
+      }
+    }
+    val start = Math.max(height - lfsm.LFSMHelpers.NISP_WINDOW.toInt, stored.map(_._1).min)
+    val validNISPs = stored.collect {
+      case (h, nispScore, shares) if h >= start && h <= height && nispScore >= score => NISP(nispScore, shares)
+    }
+    val bestNISP = validNISPs.foldLeft(Option.empty[NISP]){
+      (z, x) =>
+        if(z.isEmpty) {
+          Some(x.copy(shares = makeUnique(x.shares)))
+        }else if(z.get.shares.size >= NISP_SIZE){
+          z
+        }else{
+          val uniqueShares = makeUnique(x.shares).filter(s => !z.get.shares.exists(p => p.headerBytes sameElements s.headerBytes))
+          Some(z.get.copy(score = score, shares = z.get.shares ++ uniqueShares))
+        }
+    }
+    bestNISP.filter(_.shares.size >= NISP_SIZE).map(n => n.copy(shares = n.shares.take(NISP_SIZE)))
+  }
+
+  def assertSameBest(db: NISPDatabase, stored: Seq[(Int, Long, Seq[SuperShare])]): Unit = {
+    val queryHeights = stored.map(_._1).flatMap(h => Seq(h - 1, h, h + 25)) :+ (stored.map(_._1).max + 400)
+    val queryScores = Seq(1L, 2L, 3L, 4L).map(_ * NISPGenerator.SCORE)
+    for(h <- queryHeights; score <- queryScores) {
+      val expected = foldBestNISP(stored, h, score).map(_.serialize)
+      val best = db.getBestValidNISP(h, score).map(_.serialize)
+      assert(best.isDefined == expected.isDefined && best.forall(_ sameElements expected.get),
+        s"at height $h above score $score")
+    }
+  }
+
+  def pointer(db: NISPDatabase, key: Array[Byte]): Option[Int] = {
+    db.getAll.find(_._1 sameElements key).map(kv => Ints.fromByteArray(kv._2))
+  }
+
+  /**
+   * Asserts the stats, both height pointers and the window index all describe exactly the given NISPs
+   */
+  def assertConsistent(db: NISPDatabase, stored: Seq[(Int, Long, Seq[SuperShare])]): Unit = {
+    val heights = stored.map(_._1)
+    val expected = NISPStats(stored.size, stored.map(_._3.size).sum,
+      stored.map(n => SCORE_SIZE + n._3.map(_.serialize.length.toLong).sum).sum, heights.headOption, heights.lastOption)
+    assert(db.stats == expected)
+    assert(pointer(db, LAST_HEIGHT) == heights.headOption)
+    assert(pointer(db, CURRENT_HEIGHT) == heights.lastOption)
+    added.filterNot(n => heights.contains(n._1)).foreach {
+      case (h, _, _) =>
+        assert(db.shareCount(h) == 0)
+        assert(db.getNISPBytes(h).isEmpty)
+    }
+    if(stored.nonEmpty)
+      assertSameBest(db, stored)
+    else
+      assertThrows[IllegalArgumentException](db.getBestValidNISP(added.last._1, NISPGenerator.SCORE))
+  }
+
+  test("Migrated stats match legacy NISPs"){
+    withLegacyDatabase{
+      (_, db) =>
+        val expected = NISPStats(legacyNISPs.size, legacyNISPs.map(_._2.shares.size).sum,
+          legacyNISPs.map(_._2.serialize.length.toLong).sum, Some(heights.min), Some(heights.max))
+        assert(db.stats == expected)
+        assert(db.size == legacyNISPs.size)
+    }
+  }
+
+  test("Migrated NISPs keep their shares in order"){
+    withLegacyDatabase{
+      (_, db) =>
+        legacyNISPs.foreach{
+          case (h, nisp) =>
+            assert(db.shareCount(h) == nisp.shares.size)
+            assert(db.getNISPBytes(h).exists(_ sameElements nisp.serialize), s"at height $h")
+        }
+        assert(db.getAll.forall(_._1.length != LEGACY_KEY_SIZE))
+    }
+  }
+
+  test("Best valid NISP is built from migrated shares"){
+    withLegacyDatabase{
+      (_, db) =>
+        val expected = NISP(NISPGenerator.SCORE, legacyNISPs.flatMap(_._2.shares).take(NISP_SIZE))
+        val best = db.getBestValidNISP(heights.max, NISPGenerator.SCORE)
+        assert(best.map(_.serialize).exists(_ sameElements expected.serialize))
+        assert(db.getBestValidNISP(heights.max, NISPGenerator.SCORE + 1).isEmpty)
+    }
+  }
+
+  test("Migration is only done once"){
+    withLegacyDatabase{
+      (dir, db) =>
+        val stats = db.stats
+        db.close()
+        val reopened = new NISPDatabase(dir)
+        try {
+          assert(reopened.stats == stats)
+          assert(legacyNISPs.forall{ case (h, nisp) => reopened.shareCount(h) == nisp.shares.size })
+        } finally {
+          reopened.close()
+        }
+    }
+  }
+
+  test("Window index answers like the fold over every NISP in the window"){
+    withAddedNISPs{
+      (_, db) =>
+        assertSameBest(db, added)
+    }
+  }
+
+  test("Best NISP keeps its score only when a single NISP is used"){
+    withAddedNISPs{
+      (_, db) =>
+        // Only the 7th height reaches the score in this window, and has enough shares alone
+        val (seventh, seventhScore, _) = added(6)
+        val single = db.getBestValidNISP(added(7)._1 + 300, 2 * NISPGenerator.SCORE)
+        assert(single.map(_.score).contains(seventhScore))
+        assert(single.get.shares.forall(_.getHeight >= seventh - 50))
+
+        // The first four heights are needed, each starting with a share already picked from the height before
+        val combined = db.getBestValidNISP(added(3)._1, NISPGenerator.SCORE / 2)
+        assert(combined.map(_.score).contains(NISPGenerator.SCORE / 2))
+        assert(combined.get.shares.map(s => java.nio.ByteBuffer.wrap(s.headerBytes)).distinct.size == NISP_SIZE)
+        assert(combined.get.shares.map(_.getHeight).distinct == added.take(4).map(_._1))
+    }
+  }
+
+  test("Pruning keeps stats, pointers and the window index consistent"){
+    withAddedNISPs{
+      (dir, db) =>
+        assertConsistent(db, added)
+        assert(db.prune(added(3)._1) == 3)
+        assertConsistent(db, added.drop(3))
+        assert(db.prune(added(3)._1) == 0)
+        db.close()
+        withDatabase(dir)(reopened => assertConsistent(reopened, added.drop(3)))
+    }
+  }
+
+  test("Removing NISPs from the lowest height keeps the database consistent"){
+    withAddedNISPs{
+      (_, db) =>
+        assert(db.removeLastNISP)
+        assertConsistent(db, added.drop(1))
+        assert(db.removeUntil(added(5)._1))
+        assertConsistent(db, added.drop(5))
+        assertThrows[Exception](db.removeUntil(added.last._1 + 1))
+    }
+  }
+
+  test("Pruning everything empties the database"){
+    withAddedNISPs{
+      (_, db) =>
+        assert(db.prune(Int.MaxValue) == added.size)
+        assert(db.stats == NISPStats.empty)
+        assertConsistent(db, Seq.empty)
+        assert(db.prune(Int.MaxValue) == 0)
+
+        val (h, score, shares) = added.last
+        assert(db.addNISP(h, score, shares.head))
+        assertConsistent(db, Seq((h, score, shares.take(1))))
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package nisp
+
+import org.bouncycastle.util.encoders.Hex
+import org.json.{JSONArray, JSONObject}
+import scorex.crypto.hash.Blake2b256
+import scorex.utils.{Ints, Longs}
+import sigma.pow.Autolykos2PowValidation
+import stratum.data.MiningCandidate
+
+import java.io.ByteArrayOutputStream
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.util.Random
+
+/**
+ * Deterministic super shares for tests and benchmarks. Shares are built by `SuperShare.fromCandidate` from synthetic
+ * mining candidates, the same way the pool builds them, so they have well-formed 220 byte headers at the requested
+ * height and transaction proofs of the requested depth.
+ */
+object NISPGenerator {
+  final val START_HEIGHT = 1262000
+  final val SCORE        = 2879283L
+  final val PROOF_LEVELS = 8
+  // secp256k1 generator, any valid group element works as the miner's public key
+  private final val PK = "0279be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798"
+  private final val N_BITS = 0x07051e8b
+
+  def share(height: Int, seed: Long, levels: Int = PROOF_LEVELS): SuperShare = {
+    val random = new Random(height.toLong * 31 + seed)
+    val mining = candidate(height, random, levels)
+    SuperShare.fromCandidate(bytes(random, 8), mining)
+  }
+
+  /**
+   * Share whose PoW hit is at most `maxHit`, found by trying nonces from zero like a miner would
+   */
+  def minedShare(height: Int, seed: Long, maxHit: BigInt, levels: Int = PROOF_LEVELS): SuperShare = {
+    val random = new Random(height.toLong * 31 + seed)
+    val mining = candidate(height, random, levels)
+    val msg = Blake2b256.hash(Hex.decode(mining.proof.getString("msgPreimage")))
+    val nonce = Iterator.from(0).map(i => Longs.toByteArray(i.toLong)).find(n => hit(msg, n, height) <= maxHit).get
+    SuperShare.fromCandidate(nonce, mining)
+  }
+
+  /**
+   * Same share with a transaction proof of a different depth, the header and its PoW are kept
+   */
+  def withLevels(share: SuperShare, levels: Int): SuperShare = {
+    val random = new Random(levels)
+    SuperShare(share.headerBytes, Some(TransactionProof(bytes(random, 32), (0 until levels).map(_ => bytes(random, 33)))))
+  }
+
+  def hit(msg: Array[Byte], nonce: Array[Byte], height: Int): BigInt = {
+    Autolykos2PowValidation.hitForVersion2ForMessageWithChecks(32, msg, nonce, Ints.toByteArray(height),
+      Autolykos2PowValidation.calcN(height))
+  }
+
+  private def candidate(height: Int, random: Random, levels: Int): MiningCandidate = {
+    val txId = Hex.toHexString(bytes(random, 32))
+    val proof = new JSONObject()
+    val txProof = new JSONObject()
+    val levelArr = new JSONArray()
+    (0 until levels).foreach(_ => levelArr.put(Hex.toHexString(bytes(random, 33))))
+    txProof.put("leaf", txId)
+    txProof.put("levels", levelArr)
+    proof.put("msgPreimage", Hex.toHexString(headerWithoutPow(height, random)))
+    proof.put("txProofs", new JSONArray().put(txProof))
+    new MiningCandidate(bytes(random, 32), height, 2, BigInteger.ONE, PK, proof, txId)
+  }
+
+  def shares(height: Int, count: Int): Seq[SuperShare] = (0 until count).map(i => share(height, i))
+
+  def nisp(height: Int, count: Int): NISP = NISP(SCORE, shares(height, count))
+
+  /**
+   * Serialized version 2 header without its PoW solution, the node's `msgPreimage`
+   */
+  private def headerWithoutPow(height: Int, random: Random): Array[Byte] = {
+    val out = new ByteArrayOutputStream()
+    out.write(2)                                  // version
+    out.write(bytes(random, 32))                  // parentId
+    out.write(bytes(random, 32))                  // ADProofsRoot
+    out.write(bytes(random, 32))                  // transactionsRoot
+    out.write(bytes(random, 33))                  // stateRoot
+    writeVLQ(out, 1700000000000L + height * 120000L) // timestamp
+    out.write(bytes(random, 32))                  // extensionRoot
+    out.write(ByteBuffer.allocate(4).putInt(N_BITS).array()) // nBits
+    writeVLQ(out, height)
+    out.write(Array[Byte](0, 0, 0))               // votes
+    out.write(0)                                  // unparsed bytes length
+    out.toByteArray
+  }
+
+  private def writeVLQ(out: ByteArrayOutputStream, value: Long): Unit = {
+    var v = value
+    while((v & ~0x7fL) != 0) {
+      out.write(((v & 0x7f) | 0x80).toInt)
+      v >>>= 7
+    }
+    out.write(v.toInt)
+  }
+
+  private def bytes(random: Random, size: Int): Array[Byte] = {
+    val b = new Array[Byte](size)
+    random.nextBytes(b)
+    b
+  }
+}
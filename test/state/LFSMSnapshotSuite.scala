@@ -0,0 +1,112 @@
+package state
+
+import lfsm.{LFSMPhase, NISPTree, TreeOperation}
+import org.scalatest.funsuite.AnyFunSuite
+import sigma.data.AvlTreeFlags
+import state.LFSMSnapshot.Checkpoint
+import utils.PayoutRecord
+import work.lithos.plasma.PlasmaParameters
+import work.lithos.plasma.collections.PlasmaMap
+
+import java.io.File
+import java.nio.file.{Files, Path}
+import java.util.{Comparator, Random}
+
+class LFSMSnapshotSuite extends AnyFunSuite{
+
+  val random = new Random(1262000)
+  def bytes(size: Int): Array[Byte] = {
+    val b = new Array[Byte](size)
+    random.nextBytes(b)
+    b
+  }
+
+  val miners: Seq[Array[Byte]] = (0 until 4).map(_ => bytes(32))
+  val inserts: Seq[TreeOperation] = miners.map(m => TreeOperation.Insert(m, bytes(2908)))
+
+  /**
+   * Applies the operations to a new dictionary directly, the way `NISPTreeCache` does while syncing
+   */
+  def mkTree(history: Seq[TreeOperation], phase: LFSMPhase, minerSet: Set[String], evaluated: Boolean,
+             blockId: String): NISPTree = {
+    val tree = PlasmaMap[Array[Byte], Array[Byte]](AvlTreeFlags.AllOperationsAllowed, PlasmaParameters.default)
+    history.foreach {
+      case TreeOperation.Insert(key, value) => tree.insert(key -> value)
+      case TreeOperation.Remove(keys)       => tree.delete(keys: _*)
+    }
+    NISPTree(tree, miners.size, BigInt(2879283L) * miners.size, Some(1262360L), 60000000000L, 1262000,
+      true, phase, minerSet, evaluated, blockId, history.toVector)
+  }
+
+  // A tree in each phase: miners still submitting, one miner removed by a fraud proof, every miner paid out
+  val holding: NISPTree = mkTree(inserts, LFSMPhase.HOLDING, Set.empty[String], false, "a1")
+  val eval: NISPTree = mkTree(inserts :+ TreeOperation.Remove(miners.take(1)), LFSMPhase.EVAL,
+    Set("9fzRcctiWfzoJyqGtPWqoXPuxSmFw6zpnjtsQ1B6jSN514XqH4q"), true, "b2")
+  val payout: NISPTree = mkTree(inserts :+ TreeOperation.Remove(miners.take(1)) :+ TreeOperation.Remove(miners.drop(1)),
+    LFSMPhase.PAYOUT, Set("9euJma7w75m5VThHmTeJAPY9YWxhKHGSe8aHgF1rBJH9156pjoZ"), true, "c3")
+
+  val checkpoint: Checkpoint = Checkpoint(1262400, "d4", Seq("a1" -> holding, "b2" -> eval, "c3" -> payout),
+    Seq(PayoutRecord("e5", 1000000000L, 2879283L, "f6", "c3", 1262390, 1262395)))
+
+  def withSnapshotDir(test: File => Unit): Unit = {
+    val dir = Files.createTempDirectory("lithos-test-lfsm")
+    try {
+      test(dir.toFile)
+    } finally {
+      Files.walk(dir).sorted(Comparator.reverseOrder[Path]()).forEach(p => Files.delete(p))
+    }
+  }
+
+  test("Trees in every phase are rebuilt from their history"){
+    withSnapshotDir{
+      dir =>
+        LFSMSnapshot.write(dir, checkpoint)
+        val read = LFSMSnapshot.read(dir)
+        assert(read.isDefined)
+        assert(read.get.height == checkpoint.height)
+        assert(read.get.blockId == checkpoint.blockId)
+        assert(read.get.payouts == checkpoint.payouts)
+        assert(read.get.trees.map(_._1) == checkpoint.trees.map(_._1))
+        read.get.trees.map(_._2).zip(checkpoint.trees.map(_._2)).foreach {
+          case (rebuilt, original) =>
+            assert(rebuilt.tree.digest sameElements original.tree.digest, s"for block ${original.blockId}")
+            assert(rebuilt.phase == original.phase)
+            assert(rebuilt.minerSet == original.minerSet)
+            assert(rebuilt.evaluated == original.evaluated)
+            assert(rebuilt.numMiners == original.numMiners)
+            assert(rebuilt.totalScore == original.totalScore)
+            assert(rebuilt.currentPeriod == original.currentPeriod)
+            assert(rebuilt.history.size == original.history.size)
+        }
+    }
+  }
+
+  test("Rebuilt trees keep their values"){
+    withSnapshotDir{
+      dir =>
+        LFSMSnapshot.write(dir, checkpoint)
+        val rebuilt = LFSMSnapshot.read(dir).get.trees.head._2.tree.copy()
+        rebuilt.prover.generateProof()
+        val lookUp = rebuilt.lookUp(miners: _*).response.map(_.get)
+        assert(lookUp.zip(inserts).forall{
+          case (value, TreeOperation.Insert(_, inserted)) => value sameElements inserted
+          case _ => false
+        })
+    }
+  }
+
+  test("Snapshot whose history does not match the tree is ignored"){
+    withSnapshotDir{
+      dir =>
+        val diverged = holding.copy(history = holding.history.dropRight(1))
+        LFSMSnapshot.write(dir, checkpoint.copy(trees = Seq("a1" -> diverged)))
+        assert(LFSMSnapshot.read(dir).isEmpty)
+    }
+  }
+
+  test("Missing snapshot is read as none"){
+    withSnapshotDir{
+      dir => assert(LFSMSnapshot.read(dir).isEmpty)
+    }
+  }
+}